@@ -0,0 +1,88 @@
+import ex2.bench.Target;
+
+import java.io.IOException;
+
+/**
+ * Implements the benchmarks Target over the spreadsheet classes (see ex2.bench.Target).
+ */
+public class SheetTarget implements Target {
+    @Override
+    public boolean isForm(String form) {
+        return SCell.isForm(form);
+    }
+
+    @Override
+    public double computeForm(String form) {
+        return SCell.computeForm(form);
+    }
+
+    @Override
+    public int parseEntry(String entry) {
+        CellEntry c = new CellEntry(entry);
+        return c.isValid() ? c.getX() * 1000 + c.getY() : -1;
+    }
+
+    @Override
+    public long parseKey(String entry) {
+        return CellEntry.parse(entry, 0, entry.length());
+    }
+
+    @Override
+    public int generate(String fileName, int cells, int width, long seed) throws IOException {
+        SheetGenerator generator = new SheetGenerator(seed);
+        generator.setSize(cells, width, Math.max(1, (cells + width - 1) / width));
+        generator.write(fileName);
+        return generator.height();
+    }
+
+    @Override
+    public SheetHandle newSheet(int width, int height) {
+        Ex2Sheet sheet = new Ex2Sheet(width, height);
+        return new SheetHandle() {
+            @Override
+            public void set(int x, int y, String data) {
+                sheet.set(x, y, data);
+            }
+
+            @Override
+            public String value(int x, int y) {
+                return sheet.value(x, y);
+            }
+
+            @Override
+            public void eval() {
+                sheet.eval();
+            }
+
+            @Override
+            public void setRangeIndex(boolean enabled) {
+                sheet.setRangeIndex(enabled);
+            }
+
+            @Override
+            public int[][] depth() {
+                return sheet.depth();
+            }
+
+            @Override
+            public void load(String fileName) throws IOException {
+                sheet.load(fileName);
+            }
+
+            @Override
+            public void save(String fileName) throws IOException {
+                sheet.save(fileName);
+            }
+
+            @Override
+            public void loadSnapshot(String fileName) throws IOException {
+                sheet.loadSnapshot(fileName);
+            }
+
+            @Override
+            public void saveSnapshot(String fileName) throws IOException {
+                sheet.saveSnapshot(fileName);
+            }
+        };
+    }
+}
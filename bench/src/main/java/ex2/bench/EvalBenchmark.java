@@ -0,0 +1,52 @@
+package ex2.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The full Ex2Sheet.eval() and depth() of a shape.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvalBenchmark {
+    @Param({"CHAIN", "DIAMOND", "FANIN", "RANGE"})
+    public Workloads.Shape shape;
+
+    @Param({"100", "10000"})
+    public int size;
+
+    private Target.SheetHandle sheet;
+    private int[] output;
+
+    @Setup
+    public void setup() {
+        sheet = Target.INSTANCE.newSheet(1, 1);
+        output = Workloads.fill(sheet, shape, size);
+    }
+
+    @Benchmark
+    public String eval() {
+        sheet.eval();
+        return sheet.value(output[0], output[1]);
+    }
+
+    @Benchmark
+    public int[][] depth() {
+        return sheet.depth();
+    }
+}
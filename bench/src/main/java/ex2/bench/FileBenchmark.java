@@ -0,0 +1,80 @@
+package ex2.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ex2Sheet.load and save of files generated by SheetGenerator, and of their binary snapshots (loadSnapshot, saveSnapshot).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@State(Scope.Benchmark)
+public class FileBenchmark {
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int cells;
+
+    private Path input, output, snapshot, snapshotOutput;
+    private Target.SheetHandle sheet;
+
+    @Setup
+    public void setup() throws IOException {
+        input = Files.createTempFile("ex2-bench", ".txt");
+        output = Files.createTempFile("ex2-bench-save", ".txt");
+        int height = Target.INSTANCE.generate(input.toString(), cells, 100, 42);
+        sheet = Target.INSTANCE.newSheet(100, height);
+        sheet.load(input.toString());
+        snapshot = Files.createTempFile("ex2-bench", ".snapshot");
+        snapshotOutput = Files.createTempFile("ex2-bench-save", ".snapshot");
+        sheet.saveSnapshot(snapshot.toString());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(snapshotOutput);
+    }
+
+    @Benchmark
+    public Target.SheetHandle load() throws IOException {
+        sheet.load(input.toString());
+        return sheet;
+    }
+
+    @Benchmark
+    public Path save() throws IOException {
+        sheet.save(output.toString());
+        return output;
+    }
+
+    @Benchmark
+    public Target.SheetHandle loadSnapshot() throws IOException {
+        sheet.loadSnapshot(snapshot.toString());
+        return sheet;
+    }
+
+    @Benchmark
+    public Path saveSnapshot() throws IOException {
+        sheet.saveSnapshot(snapshotOutput.toString());
+        return snapshotOutput;
+    }
+}
@@ -0,0 +1,58 @@
+package ex2.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a single formula or cell entry (SCell.isForm, SCell.computeForm and CellEntry).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormulaBenchmark {
+    private static final Target TARGET = Target.INSTANCE;
+
+    @Benchmark
+    public boolean isForm(Forms forms) {
+        return TARGET.isForm(forms.form);
+    }
+
+    @Benchmark
+    public double computeForm(Forms forms) {
+        return TARGET.computeForm(forms.form);
+    }
+
+    @Benchmark
+    public int parseEntry(Entries entries) {
+        return TARGET.parseEntry(entries.entry);
+    }
+
+    @Benchmark
+    public long parseKey(Entries entries) {
+        return TARGET.parseKey(entries.entry);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Forms {
+        @Param({"=1", "=1+2*3", "=((1.5+2)*(3-4/5))/-6", "=(1+2)*(3+4)*(5+6)*(7+8)*(9+10)*(11+12)*(13+14)*(15+16)"})
+        public String form;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Entries {
+        @Param({"A0", "Z99", "AA1"})
+        public String entry;
+    }
+}
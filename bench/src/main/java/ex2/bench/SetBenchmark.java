@@ -0,0 +1,61 @@
+package ex2.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ex2Sheet.set of the input cell of a shape, which recalculates all the cells depending on it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SetBenchmark {
+    @Param({"CHAIN", "DIAMOND", "FANIN", "RANGE"})
+    public Workloads.Shape shape;
+
+    @Param({"100", "10000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean rangeIndex;
+
+    private Target.SheetHandle sheet;
+    private int[] output;
+    private int input;
+
+    @Setup
+    public void setup() {
+        sheet = Target.INSTANCE.newSheet(1, 1);
+        sheet.setRangeIndex(rangeIndex);
+        output = Workloads.fill(sheet, shape, size);
+    }
+
+    @Benchmark
+    public String setInput() {
+        input = (input + 1) & 0xFF;
+        sheet.set(0, 0, String.valueOf(input));
+        return sheet.value(output[0], output[1]);
+    }
+
+    @Benchmark
+    public String setText() {
+        // A cell no formula refers to
+        input = (input + 1) & 0xFF;
+        sheet.set(output[0] + 1, 0, "t" + input);
+        return sheet.value(output[0] + 1, 0);
+    }
+}
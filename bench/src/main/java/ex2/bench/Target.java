@@ -0,0 +1,80 @@
+package ex2.bench;
+
+import java.io.IOException;
+
+/**
+ * The spreadsheet operations measured by the benchmarks.
+ * The spreadsheet classes are in the default package, which can not be imported from a named package
+ * (and JMH does not accept benchmarks in the default package), so they are reached through this interface,
+ * implemented by SheetTarget (in the default package). The calls are monomorphic and inlined by the JIT.
+ */
+public interface Target {
+    /**
+     * The implementation, loaded once by name.
+     */
+    Target INSTANCE = load();
+
+    boolean isForm(String form);
+
+    double computeForm(String form);
+
+    /**
+     * Parses a cell entry (e.g., "B12").
+     * @return x * 1000 + y, or -1 for an invalid entry.
+     */
+    int parseEntry(String entry);
+
+    /**
+     * Parses a cell entry in place (see CellEntry.parse).
+     * @return the packed key of the entry, or -1 for an invalid entry.
+     */
+    long parseKey(String entry);
+
+    SheetHandle newSheet(int width, int height);
+
+    /**
+     * Writes a sheet of the given number of cells with SheetGenerator (with its default settings).
+     * @return the height of the generated sheet.
+     */
+    int generate(String fileName, int cells, int width, long seed) throws IOException;
+
+    /**
+     * A single Ex2Sheet.
+     */
+    interface SheetHandle {
+        void set(int x, int y, String data);
+
+        String value(int x, int y);
+
+        void eval();
+
+        /**
+         * See Ex2Sheet.setRangeIndex.
+         */
+        void setRangeIndex(boolean enabled);
+
+        int[][] depth();
+
+        void load(String fileName) throws IOException;
+
+        void save(String fileName) throws IOException;
+
+        /**
+         * See Ex2Sheet.loadSnapshot.
+         */
+        void loadSnapshot(String fileName) throws IOException;
+
+        /**
+         * See Ex2Sheet.saveSnapshot.
+         */
+        void saveSnapshot(String fileName) throws IOException;
+    }
+
+    private static Target load() {
+        try {
+            return (Target) Class.forName("SheetTarget").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("SheetTarget is missing from the benchmarks jar", e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ex2.bench;
+
+/**
+ * The sheets measured by the benchmarks, laid out in columns of ROWS cells. The input of every shape is A0.
+ */
+public final class Workloads {
+    static final int ROWS = 100;
+
+    public enum Shape {
+        /** A0=1, every cell is the previous cell (column by column) + 1. */
+        CHAIN,
+        /** A0=1, column B is A0*y, every following column x,y = (x-1),y + (x-1),(y+1)%rows. */
+        DIAMOND,
+        /** The input cells and a single cell (after them) summing all of them. */
+        FANIN,
+        /** As FANIN, with a single SUM of the range of the input cells. */
+        RANGE
+    }
+
+    private Workloads() {
+    }
+
+    /**
+     * Fills a sheet (which grows as needed) with about size cells of the given shape.
+     * @return the {x, y} of the output cell of the shape (which depends on the input).
+     */
+    static int[] fill(Target.SheetHandle sheet, Shape shape, int size) {
+        int rows = Math.min(ROWS, size);
+        int columns = Math.max(1, (size + rows - 1) / rows);
+        sheet.set(0, 0, "1");
+        switch (shape) {
+            case CHAIN:
+                for (int i = 1; i < columns * rows; i++) {
+                    int prev = i - 1;
+                    sheet.set(i / rows, i % rows, "=" + name(prev / rows, prev % rows) + "+1");
+                }
+                return new int[]{columns - 1, rows - 1};
+            case DIAMOND:
+                for (int y = 0; y < rows; y++) {
+                    sheet.set(1, y, "=A0*" + y);
+                }
+                for (int x = 2; x < columns; x++) {
+                    for (int y = 0; y < rows; y++) {
+                        sheet.set(x, y, "=" + name(x - 1, y) + "+" + name(x - 1, (y + 1) % rows));
+                    }
+                }
+                return new int[]{Math.max(1, columns - 1), 0};
+            default:
+                StringBuilder sum = new StringBuilder("=A0");
+                for (int i = 1; i < columns * rows; i++) {
+                    sheet.set(i / rows, i % rows, String.valueOf(i));
+                    sum.append('+').append(name(i / rows, i % rows));
+                }
+                if (shape == Shape.RANGE) {
+                    sum = new StringBuilder("=SUM(A0:").append(name(columns - 1, rows - 1)).append(')');
+                }
+                sheet.set(columns, 0, sum.toString());
+                return new int[]{columns, 0};
+        }
+    }
+
+    /**
+     * @return the name of the x,y cell (e.g., "AB12").
+     */
+    static String name(int x, int y) {
+        StringBuilder column = new StringBuilder();
+        for (int c = x + 1; c > 0; c = (c - 1) / 26) {
+            column.append((char) ('A' + (c - 1) % 26));
+        }
+        return column.reverse().append(y).toString();
+    }
+}
@@ -0,0 +1,297 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Fixed width cell records stored off the Java heap (in direct ByteBuffers), for sheets too large to keep as objects:
+ * the garbage collector only sees a few buffers, whatever the number of cells.
+ *
+ * The records are kept in an open addressing hash table (linear probing by the packed x,y key of the cell, as CellMap)
+ * split into segments (a ByteBuffer is limited to 2GB). A record of RECORD bytes holds the key + 1 (0 for a free record),
+ * the type of the cell, the length and offset of its text, its value (the number, or the cached value of a formula)
+ * and the version and error the value was computed with.
+ * The texts are stored as UTF-8 in a separate heap of direct buffers, a replaced text is garbage until
+ * the heap is compacted (once it is more than half garbage).
+ *
+ * A record is addressed by its index, which is only valid until the next insert or remove (they move records).
+ */
+public class CellArena {
+    private static final int KEY = 0, TYPE = 8, LENGTH = 12, TEXT = 16, VALUE = 24, VERSION = 32, ERROR = 40;
+    /** The size of a record in bytes. */
+    public static final int RECORD = 44;
+    private static final int TEXT_CHUNK = 1 << 20;  // bytes per text buffer (a longer text gets a buffer of its own)
+
+    private final int segmentBits;  // a segment holds 2^segmentBits records
+    private ByteBuffer[] segments;
+    private long capacity;  // the number of records, a power of 2
+    private long size;
+    private ByteBuffer[] texts;
+    private int textCount;  // the used buffers of texts, the last one is appended to
+    private long textBytes, garbage;
+
+    public CellArena() {
+        this(20);
+    }
+
+    /**
+     * @param segmentBits the log2 of the number of records per segment (at most 24, so a segment is under 2GB).
+     */
+    CellArena(int segmentBits) {
+        this.segmentBits = segmentBits;
+        clear();
+    }
+
+    /**
+     * Releases all the records and texts (the buffers are freed by the garbage collector).
+     */
+    public void clear() {
+        capacity = 16;
+        segments = allocate(capacity);
+        size = 0;
+        texts = new ByteBuffer[4];
+        textCount = 0;
+        textBytes = 0;
+        garbage = 0;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of records (used or free), the records are 0 ... capacity()-1.
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes allocated off the heap.
+     */
+    public long offHeapBytes() {
+        long ans = capacity * RECORD;
+        for (int i = 0; i < textCount; i++) {
+            ans += texts[i].capacity();
+        }
+        return ans;
+    }
+
+    /**
+     * @return the record of the given key, -1 if there is none.
+     */
+    public long find(long key) {
+        long mask = capacity - 1;
+        for (long r = slot(key, mask); isUsed(r); r = (r + 1) & mask) {
+            if (key(r) == key) {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the record of the given key, a new one (of type 0, without a text) if there was none.
+     */
+    public long insert(long key) {
+        long r = find(key);
+        if (r >= 0) {
+            return r;
+        }
+        if (2 * (size + 1) > capacity) {
+            grow();
+        }
+        long mask = capacity - 1;
+        for (r = slot(key, mask); isUsed(r); r = (r + 1) & mask) {
+            // probing for a free record
+        }
+        ByteBuffer segment = segment(r);
+        int at = offset(r);
+        for (int i = 0; i < RECORD; i += 4) {
+            segment.putInt(at + i, 0);
+        }
+        segment.putLong(at + KEY, key + 1);
+        size++;
+        return r;
+    }
+
+    /**
+     * Removes the record of the given key (if any).
+     */
+    public void remove(long key) {
+        long r = find(key);
+        if (r < 0) {
+            return;
+        }
+        garbage += length(r);
+        // Shifts back the following records of the probe sequence, so no tombstones are needed (as CellMap.remove)
+        long mask = capacity - 1;
+        long free = r;
+        for (long j = (r + 1) & mask; isUsed(j); j = (j + 1) & mask) {
+            long home = slot(key(j), mask);
+            if (((j - home) & mask) >= ((j - free) & mask)) {
+                copy(segment(j), offset(j), segment(free), offset(free));
+                free = j;
+            }
+        }
+        segment(free).putLong(offset(free) + KEY, 0);
+        size--;
+    }
+
+    public boolean isUsed(long r) {
+        return segment(r).getLong(offset(r) + KEY) != 0;
+    }
+
+    public long key(long r) {
+        return segment(r).getLong(offset(r) + KEY) - 1;
+    }
+
+    public int type(long r) {
+        return segment(r).getInt(offset(r) + TYPE);
+    }
+
+    public void setType(long r, int type) {
+        segment(r).putInt(offset(r) + TYPE, type);
+    }
+
+    public double value(long r) {
+        return segment(r).getDouble(offset(r) + VALUE);
+    }
+
+    public long version(long r) {
+        return segment(r).getLong(offset(r) + VERSION);
+    }
+
+    public int error(long r) {
+        return segment(r).getInt(offset(r) + ERROR);
+    }
+
+    /**
+     * Sets the value of a record, with the version and error it was computed with.
+     */
+    public void setValue(long r, double value, long version, int error) {
+        ByteBuffer segment = segment(r);
+        int at = offset(r);
+        segment.putDouble(at + VALUE, value);
+        segment.putLong(at + VERSION, version);
+        segment.putInt(at + ERROR, error);
+    }
+
+    /**
+     * @return the text of a record, "" if it has none.
+     */
+    public String text(long r) {
+        int length = length(r);
+        if (length == 0) {
+            return "";
+        }
+        long text = segment(r).getLong(offset(r) + TEXT);
+        byte[] bytes = new byte[length];
+        texts[(int) (text >>> 32)].get((int) text, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void setText(long r, String s) {
+        garbage += length(r);
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        long text = append(bytes);
+        ByteBuffer segment = segment(r);
+        segment.putInt(offset(r) + LENGTH, bytes.length);
+        segment.putLong(offset(r) + TEXT, text);
+        if (garbage > TEXT_CHUNK && 2 * garbage > textBytes) {
+            compact();
+        }
+    }
+
+    private int length(long r) {
+        return segment(r).getInt(offset(r) + LENGTH);
+    }
+
+    /**
+     * @return the offset of the appended bytes: the index of their buffer (high 32 bits) and their position in it.
+     */
+    private long append(byte[] bytes) {
+        ByteBuffer last = textCount == 0 ? null : texts[textCount - 1];
+        if (last == null || last.remaining() < bytes.length) {
+            if (textCount == texts.length) {
+                texts = Arrays.copyOf(texts, textCount * 2);
+            }
+            last = texts[textCount++] = ByteBuffer.allocateDirect(Math.max(TEXT_CHUNK, bytes.length));
+        }
+        long ans = ((long) (textCount - 1) << 32) | last.position();
+        last.put(bytes);
+        textBytes += bytes.length;
+        return ans;
+    }
+
+    /**
+     * Copies the texts of all the records into a new text heap, dropping the garbage.
+     */
+    private void compact() {
+        ByteBuffer[] old = texts;
+        texts = new ByteBuffer[4];
+        textCount = 0;
+        textBytes = 0;
+        garbage = 0;
+        for (long r = 0; r < capacity; r++) {
+            int length = isUsed(r) ? length(r) : 0;
+            if (length > 0) {
+                ByteBuffer segment = segment(r);
+                long text = segment.getLong(offset(r) + TEXT);
+                byte[] bytes = new byte[length];
+                old[(int) (text >>> 32)].get((int) text, bytes);
+                segment.putLong(offset(r) + TEXT, append(bytes));
+            }
+        }
+    }
+
+    /**
+     * Doubles the number of records, rehashing all the used ones.
+     */
+    private void grow() {
+        ByteBuffer[] old = segments;
+        long oldCapacity = capacity;
+        capacity *= 2;
+        segments = allocate(capacity);
+        long mask = capacity - 1;
+        for (long r = 0; r < oldCapacity; r++) {
+            ByteBuffer from = old[(int) (r >>> segmentBits)];
+            int at = (int) (r & ((1L << segmentBits) - 1)) * RECORD;
+            long key = from.getLong(at + KEY) - 1;
+            if (key >= 0) {
+                long j = slot(key, mask);
+                while (isUsed(j)) {
+                    j = (j + 1) & mask;
+                }
+                copy(from, at, segment(j), offset(j));
+            }
+        }
+    }
+
+    private ByteBuffer[] allocate(long records) {
+        long perSegment = Math.min(records, 1L << segmentBits);
+        ByteBuffer[] ans = new ByteBuffer[(int) ((records + perSegment - 1) / perSegment)];
+        for (int i = 0; i < ans.length; i++) {
+            ans[i] = ByteBuffer.allocateDirect((int) (perSegment * RECORD));  // zeroed, all the records are free
+        }
+        return ans;
+    }
+
+    private static void copy(ByteBuffer from, int at, ByteBuffer to, int toAt) {
+        for (int i = 0; i < RECORD; i += 4) {
+            to.putInt(toAt + i, from.getInt(at + i));
+        }
+    }
+
+    private ByteBuffer segment(long r) {
+        return segments[(int) (r >>> segmentBits)];
+    }
+
+    private int offset(long r) {
+        return (int) (r & ((1L << segmentBits) - 1)) * RECORD;
+    }
+
+    private static long slot(long key, long mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -1,4 +1,9 @@
 public class CellEntry implements Index2D {
+    /**
+     * The key parse returns for an invalid index (no valid index has a negative key).
+     */
+    public static final long INVALID = -1;
+
     private String index;
     private int x, y;
 
@@ -8,44 +13,87 @@ public class CellEntry implements Index2D {
     }
 
     private void parseIndex() {
-        // Reset to invalid state first
-        x = Ex2Utils.ERR;
-        y = Ex2Utils.ERR;
-
-        if (isValid()) {
-            // Get the column letter and convert to number (A=0, B=1, etc)
-            char column = index.charAt(0);
-            x = column - 'A';
+        long key = index == null ? INVALID : parse(index, 0, index.length());
+        x = key == INVALID ? Ex2Utils.ERR : keyX(key);
+        y = key == INVALID ? Ex2Utils.ERR : keyY(key);
+    }
 
-            // Get the row number from the rest of the string
-            try {
-                y = Integer.parseInt(index.substring(1));
-            } catch (NumberFormatException e) {
-                x = Ex2Utils.ERR;
-                y = Ex2Utils.ERR;
+    /**
+     * Parses the index in s[from, to) without creating any object: one or more letters A-Z (the column,
+     * A=0 ... Z=25, AA=26 ... AZ=51, BA=52 ..., as in "XFD") followed by the row, any none negative int.
+     * @return the packed x,y key of the index (see key), or INVALID.
+     */
+    public static long parse(CharSequence s, int from, int to) {
+        int i = from;
+        long column = 0;
+        while (i < to && s.charAt(i) >= 'A' && s.charAt(i) <= 'Z') {
+            column = column * 26 + (s.charAt(i) - 'A' + 1);
+            if (column > Integer.MAX_VALUE) {
+                return INVALID;
             }
+            i++;
         }
+        if (i == from || i == to) {
+            return INVALID;
+        }
+        long row = 0;
+        for (; i < to; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return INVALID;
+            }
+            row = row * 10 + d;
+            if (row > Integer.MAX_VALUE) {
+                return INVALID;
+            }
+        }
+        return key((int) (column - 1), (int) row);
     }
 
-    @Override
-    public boolean isValid() {
-        if (index == null || index.length() < 2) {
-            return false;
-        }
+    /**
+     * Packs the x,y coordinate of a cell into a single key (used by the sheets to store and look up cells),
+     * for none negative coordinates the keys are ordered by x and then by y.
+     */
+    public static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
 
-        // Check first character is A-Z
-        char firstChar = index.charAt(0);
-        if (firstChar < 'A' || firstChar > 'Z') {
-            return false;
-        }
+    /**
+     * @return true iff a sheet can hold the x,y cell: x and y are none negative, and less than Integer.MAX_VALUE
+     * (a sheet holding the cell is at least x+1 wide and y+1 high).
+     */
+    public static boolean isAddressable(int x, int y) {
+        return x >= 0 && y >= 0 && x < Integer.MAX_VALUE && y < Integer.MAX_VALUE;
+    }
+
+    public static int keyX(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int keyY(long key) {
+        return (int) key;
+    }
 
-        // Check rest is a valid number 0-99
-        try {
-            int rowNum = Integer.parseInt(index.substring(1));
-            return rowNum >= 0 && rowNum < 100;
-        } catch (NumberFormatException e) {
-            return false;
+    /**
+     * @return the name of the x,y cell (e.g., "B3", "AA100"), null if x or y is negative.
+     */
+    public static String name(int x, int y) {
+        if (x < 0 || y < 0) {
+            return null;
         }
+        StringBuilder column = new StringBuilder();
+        for (long c = x + 1L; c > 0; c = (c - 1) / 26) {
+            column.append((char) ('A' + (c - 1) % 26));
+        }
+        return column.reverse().append(y).toString();
+    }
+
+    /**
+     * @return true iff this index is one or more letters A-Z (the column) followed by a none negative integer (the row).
+     */
+    @Override
+    public boolean isValid() {
+        return x != Ex2Utils.ERR;
     }
 
     @Override
@@ -62,4 +110,4 @@ public class CellEntry implements Index2D {
     public String toString() {
         return index;
     }
-}
\ No newline at end of file
+}
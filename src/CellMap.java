@@ -0,0 +1,136 @@
+import java.util.Arrays;
+
+/**
+ * A hash map from a packed (x,y) long key to a cell (a Cell, or any other per cell value),
+ * using open addressing (linear probing) over parallel arrays, so only the occupied cells
+ * of a sheet take memory and no key is ever boxed.
+ * @param <V> the type of the cells.
+ */
+public class CellMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;  // null marks a free slot
+    private int size;
+
+    public CellMap() {
+        clear();
+    }
+
+    /**
+     * @return the cell of the given key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Maps the given key to the (not null) cell.
+     */
+    public void put(long key, V cell) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                values[i] = cell;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = cell;
+        if (++size * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+    }
+
+    /**
+     * Removes the given key.
+     * @return the removed cell, or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        V ans = (V) values[i];
+        if (ans == null) {
+            return null;
+        }
+        // Shifts back the following entries of the probe sequence, so no tombstones are needed
+        int free = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - free) & mask)) {
+                keys[free] = keys[j];
+                values[free] = values[j];
+                free = j;
+            }
+        }
+        values[free] = null;
+        size--;
+        return ans;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        keys = new long[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * @return all the keys of this map, in no particular order.
+     */
+    public long[] keys() {
+        long[] ans = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                ans[n++] = keys[i];
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * @return all the keys of this map, sorted (i.e., x-major order for none negative coordinates).
+     */
+    public long[] sortedKeys() {
+        long[] ans = keys();
+        Arrays.sort(ans);
+        return ans;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                @SuppressWarnings("unchecked")
+                V cell = (V) oldValues[i];
+                put(oldKeys[i], cell);
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
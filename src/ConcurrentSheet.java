@@ -0,0 +1,478 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A thread safe SpreadSheet, for a single model served to many threads.
+ * The cells are split into square blocks, and the blocks are spread over a fixed number of stripes,
+ * each stripe has its own map of cells guarded by its own read-write lock: readers never block each other,
+ * and writers only block the readers (and writers) of the same stripe.
+ *
+ * The stored cells are immutable, and formulas are evaluated on demand with a per evaluation state
+ * (see Formula.Evaluation.evaluate: the cycles are found in the reference tables, nothing is flagged on the cells).
+ * A computed value is cached in its cell together with the generation of the cell it was computed at, and is reused
+ * until the generation changes: setting a cell only bumps the generations of the formulas that (transitively) depend on
+ * it (see invalidate), so a steady writer does not invalidate the values of the unrelated formulas.
+ */
+public class ConcurrentSheet implements Sheet {
+    private static final int BLOCK = 32;    // the side of a block of cells (in cells)
+    private static final int STRIPES = 64;  // a power of 2
+
+    private volatile int width, height;  // only grow (see set)
+    private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[STRIPES];
+    private final List<CellMap<Entry>> stripes = new ArrayList<>(STRIPES);
+    private final DependencyGraph graph = new DependencyGraph();  // guarded by itself, taken before any stripe lock
+
+    public ConcurrentSheet(int x, int y) {
+        width = x;
+        height = y;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+            stripes.add(new CellMap<>());
+        }
+    }
+
+    public ConcurrentSheet() {
+        this(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
+    }
+
+    @Override
+    public boolean isIn(int xx, int yy) {
+        return xx >= 0 && yy >= 0 && xx < width && yy < height;
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Sets the x,y cell, a cell outside of this sheet grows the sheet to include it (if it is addressable,
+     * see CellEntry.isAddressable, any other cell is ignored).
+     */
+    @Override
+    public void set(int x, int y, String c) {
+        Entry entry = c == null || c.isEmpty() ? null : new Entry(c);
+        if (!CellEntry.isAddressable(x, y) || (entry == null && !isIn(x, y))) {
+            return;
+        }
+        grow(x, y);
+        int s = stripe(x, y);
+        locks[s].writeLock().lock();
+        try {
+            if (entry == null) {
+                stripes.get(s).remove(CellEntry.key(x, y));
+            } else {
+                stripes.get(s).put(CellEntry.key(x, y), entry);
+            }
+        } finally {
+            locks[s].writeLock().unlock();
+        }
+        invalidate(x, y);
+    }
+
+    /**
+     * Updates the dependency graph with the current x,y cell and bumps the generation of every formula that
+     * (transitively) depends on it. Only after the cell is stored: an evaluation that read the generation of a formula
+     * before the bump caches a value that is never reused, one that read it after the bump reads the new cell.
+     * The formulas are bumped in topological order, so an evaluation never caches a bumped formula from the value
+     * of a precedent that is still to be bumped.
+     */
+    private void invalidate(int x, int y) {
+        long key = CellEntry.key(x, y);
+        synchronized (graph) {
+            // Read again under the graph lock: the graph follows the cell stored last, whichever writer stored it
+            Entry entry = entry(x, y);
+            Formula formula = entry == null ? null : entry.formula;
+            graph.set(key, formula == null ? null : formula.getReferences(), formula == null ? null : formula.getRanges());
+            for (long k : graph.dependentsInOrder(key)) {
+                Entry dependent = entry(CellEntry.keyX(k), CellEntry.keyY(k));
+                if (dependent != null) {
+                    dependent.generation++;  // only written under the graph lock
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the x,y cell (or null if not in), its type is the evaluated type (e.g., ERR_CYCLE_FORM).
+     * The returned cell can not be changed, except for setData which sets the x,y cell of this sheet.
+     */
+    @Override
+    public Cell get(int x, int y) {
+        if (!isIn(x, y)) {
+            return null;
+        }
+        Entry entry = entry(x, y);
+        return entry == null ? EmptyCell.INSTANCE : new View(x, y, entry);
+    }
+
+    @Override
+    public Cell get(String entry) {
+        long key = entry == null ? CellEntry.INVALID : CellEntry.parse(entry, 0, entry.length());
+        return key == CellEntry.INVALID ? null : get(CellEntry.keyX(key), CellEntry.keyY(key));
+    }
+
+    @Override
+    public String value(int x, int y) {
+        Entry entry = isIn(x, y) ? entry(x, y) : null;
+        if (entry == null) {
+            return Ex2Utils.EMPTY_CELL;
+        }
+        if (entry.type == Ex2Utils.TEXT || entry.type == Ex2Utils.NUMBER) {
+            return entry.data;
+        }
+        Evaluation evaluation = new Evaluation();
+        double v = evaluation.valueOf(x, y);
+        if (evaluation.getError() == Ex2Utils.ERR_CYCLE_FORM) {
+            return Ex2Utils.ERR_CYCLE;
+        }
+        return evaluation.getError() != 0 ? Ex2Utils.ERR_FORM : String.valueOf(v);
+    }
+
+    /**
+     * Evaluates the x,y cell as a number.
+     * @return the value of a number or a formula cell, NaN if it has no numeric value.
+     */
+    public double evalNumber(int x, int y) {
+        return new Evaluation().valueOf(x, y);
+    }
+
+    /**
+     * @return true iff the x,y cell is a formula whose cached value is still valid (see invalidate).
+     */
+    boolean isCached(int x, int y) {
+        Entry entry = isIn(x, y) ? entry(x, y) : null;
+        Value cached = entry == null ? null : entry.cached;
+        return cached != null && cached.generation == entry.generation;
+    }
+
+    @Override
+    public String eval(int x, int y) {
+        return isIn(x, y) ? value(x, y) : null;
+    }
+
+    @Override
+    public void eval() {
+        for (long k : snapshot().keySet()) {
+            evalNumber(CellEntry.keyX(k), CellEntry.keyY(k));
+        }
+    }
+
+    /**
+     * Computes the dependency depth of all the cells (see Sheet.depth) over a snapshot of the formulas,
+     * each formula once (see Formula.order).
+     */
+    @Override
+    public int[][] depth() {
+        Map<Long, Entry> cells = snapshot();
+        int[][] ans = new int[width][height];  // read after the snapshot (the sheet grows before a cell is stored)
+        Map<Long, Integer> orders = new HashMap<>();
+        for (long k : cells.keySet()) {
+            ans[CellEntry.keyX(k)][CellEntry.keyY(k)] = Formula.order(k, r -> {
+                Entry entry = cells.get(r);
+                return entry == null ? null : entry.formula;
+            }, ans.length, ans.length == 0 ? 0 : ans[0].length, orders);
+        }
+        return ans;
+    }
+
+    @Override
+    public void save(String fileName) throws IOException {
+        Map<Long, Entry> cells = snapshot();
+        long[] keys = new long[cells.size()];
+        int n = 0;
+        for (long k : cells.keySet()) {
+            keys[n++] = k;
+        }
+        Arrays.sort(keys);
+        try (SheetWriter writer = new SheetWriter(fileName)) {
+            writer.writeLine("SpreadSheet (Ex2)- saved spreadsheet");
+            for (long k : keys) {
+                writer.writeCell(CellEntry.keyX(k), CellEntry.keyY(k), cells.get(k).data);
+            }
+        }
+    }
+
+    /**
+     * Loads a saved SpreadSheet, all the stripes are locked (in order) while the file is read,
+     * so no reader sees a partially loaded stripe. All the cells are new, so no cached value survives.
+     */
+    @Override
+    public void load(String fileName) throws IOException {
+        synchronized (graph) {
+            for (ReentrantReadWriteLock lock : locks) {
+                lock.writeLock().lock();
+            }
+            try {
+                for (CellMap<Entry> stripe : stripes) {
+                    stripe.clear();
+                }
+                graph.clear();
+                SheetReader.read(fileName, (x, y, data) -> {
+                    if (CellEntry.isAddressable(x, y) && !data.isEmpty()) {
+                        grow(x, y);
+                        Entry entry = new Entry(data);
+                        stripes.get(stripe(x, y)).put(CellEntry.key(x, y), entry);
+                        Formula formula = entry.formula;
+                        graph.set(CellEntry.key(x, y), formula == null ? null : formula.getReferences(),
+                                formula == null ? null : formula.getRanges());
+                    }
+                });
+            } finally {
+                for (int i = STRIPES - 1; i >= 0; i--) {
+                    locks[i].writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    private void grow(int x, int y) {
+        if (!isIn(x, y)) {
+            synchronized (this) {
+                width = Math.max(width, x + 1);
+                height = Math.max(height, y + 1);
+            }
+        }
+    }
+
+    private Entry entry(int x, int y) {
+        int s = stripe(x, y);
+        locks[s].readLock().lock();
+        try {
+            return stripes.get(s).get(CellEntry.key(x, y));
+        } finally {
+            locks[s].readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of all the stored cells, each stripe is copied under its read lock.
+     */
+    private Map<Long, Entry> snapshot() {
+        Map<Long, Entry> ans = new HashMap<>();
+        for (int s = 0; s < STRIPES; s++) {
+            locks[s].readLock().lock();
+            try {
+                CellMap<Entry> stripe = stripes.get(s);
+                for (long k : stripe.sortedKeys()) {
+                    ans.put(k, stripe.get(k));
+                }
+            } finally {
+                locks[s].readLock().unlock();
+            }
+        }
+        return ans;
+    }
+
+    private static int stripe(int x, int y) {
+        int h = (x / BLOCK) * 31 + (y / BLOCK);
+        h ^= h >>> 16;
+        return (h * 0x9E3779B9 >>> 16) & (STRIPES - 1);
+    }
+
+    /**
+     * A single evaluation (of one thread), see Formula.Evaluation.evaluate.
+     */
+    private class Evaluation extends Formula.Evaluation {
+        private final CellMap<Started> started = new CellMap<>();  // the formulas this evaluation computes
+
+        @Override
+        protected double valueOf(int x, int y) {
+            Entry entry = isIn(x, y) ? entry(x, y) : null;
+            if (entry == null || entry.type == Ex2Utils.TEXT || entry.type == Ex2Utils.ERR_FORM_FORMAT) {
+                error = Ex2Utils.ERR_FORM_FORMAT;
+                return Double.NaN;
+            }
+            if (entry.type == Ex2Utils.NUMBER) {
+                error = 0;
+                return entry.number;
+            }
+            Value cached = entry.cached;
+            if (cached != null && cached.generation == entry.generation) {
+                error = cached.error;
+                return cached.value;
+            }
+            return evaluate(CellEntry.key(x, y));
+        }
+
+        @Override
+        protected Formula uncached(long key) {
+            int x = CellEntry.keyX(key), y = CellEntry.keyY(key);
+            Entry entry = isIn(x, y) ? entry(x, y) : null;
+            if (entry == null || entry.type != Ex2Utils.FORM) {
+                return null;
+            }
+            // The generation is read before any of its precedents, see invalidate
+            long generation = entry.generation;
+            Value cached = entry.cached;
+            if (cached != null && cached.generation == generation) {
+                return null;
+            }
+            started.put(key, new Started(entry, generation));
+            return entry.formula;
+        }
+
+        @Override
+        protected void cache(long key, double value, int error) {
+            // Cached with the generation the evaluation started at, so a value racing a set is never reused
+            // (a cell set since is a new entry: the value is cached in the old one and never read)
+            Started s = started.get(key);
+            s.entry.cached = new Value(s.generation, value, error);
+        }
+
+        @Override
+        protected boolean isBlank(int x, int y) {
+            Entry entry = isIn(x, y) ? entry(x, y) : null;
+            return entry == null || entry.type == Ex2Utils.TEXT;
+        }
+
+        @Override
+        protected int width() {
+            return width;
+        }
+
+        @Override
+        protected int height() {
+            return height;
+        }
+    }
+
+    /**
+     * Computes the order of the x,y cell (see Cell.getOrder) over the current cells, see Formula.order.
+     */
+    private int order(int x, int y) {
+        return Formula.order(CellEntry.key(x, y), r -> {
+            Entry entry = entry(CellEntry.keyX(r), CellEntry.keyY(r));
+            return entry == null ? null : entry.formula;
+        }, width, height, new HashMap<>());
+    }
+
+    /**
+     * An immutable stored cell.
+     */
+    private static class Entry {
+        final String data;
+        final int type;
+        final double number;
+        final Formula formula;
+        volatile long generation;  // bumped by every change of a (transitive) precedent, see invalidate
+        volatile Value cached;
+
+        Entry(String s) {
+            double n = 0;
+            int t = Ex2Utils.TEXT;
+            Formula f = null;
+            if (s.startsWith("=")) {
+                s = s.toUpperCase();
+                f = Formula.compile(s);
+                t = f == null ? Ex2Utils.ERR_FORM_FORMAT : Ex2Utils.FORM;
+            } else {
+                try {
+                    n = Double.parseDouble(s);
+                    t = Ex2Utils.NUMBER;
+                } catch (NumberFormatException e) {
+                    // a text cell
+                }
+            }
+            data = s;
+            type = t;
+            number = n;
+            formula = f;
+        }
+    }
+
+    /**
+     * A read only view of a stored cell.
+     */
+    private class View implements Cell {
+        private final int x, y;
+        private final Entry entry;
+
+        View(int x, int y, Entry entry) {
+            this.x = x;
+            this.y = y;
+            this.entry = entry;
+        }
+
+        @Override
+        public String getData() {
+            return entry.data;
+        }
+
+        /**
+         * Sets the x,y cell of the sheet (this view still shows the old cell).
+         */
+        @Override
+        public void setData(String s) {
+            set(x, y, s);
+        }
+
+        @Override
+        public int getType() {
+            if (entry.type != Ex2Utils.FORM) {
+                return entry.type;
+            }
+            Evaluation evaluation = new Evaluation();
+            evaluation.valueOf(x, y);
+            return evaluation.getError() == 0 ? Ex2Utils.FORM : evaluation.getError();
+        }
+
+        @Override
+        public void setType(int t) {
+            throw new UnsupportedOperationException("The type of a cell is computed by the sheet");
+        }
+
+        @Override
+        public int getOrder() {
+            return order(x, y);
+        }
+
+        @Override
+        public void setOrder(int t) {
+            throw new UnsupportedOperationException("The order of a cell is computed by the sheet");
+        }
+
+        @Override
+        public String toString() {
+            return value(x, y);
+        }
+    }
+
+    /**
+     * A formula an evaluation computes: its cell (the value is cached in it) and its generation when it was started.
+     */
+    private static class Started {
+        final Entry entry;
+        final long generation;
+
+        Started(Entry entry, long generation) {
+            this.entry = entry;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * A computed value of a formula, valid while its cell is at the given generation.
+     */
+    private static class Value {
+        final long generation;
+        final double value;
+        final int error;
+
+        Value(long generation, double value, int error) {
+            this.generation = generation;
+            this.value = value;
+            this.error = error;
+        }
+    }
+}
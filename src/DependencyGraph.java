@@ -0,0 +1,169 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The dependency graph of the formulas of a sheet: the references of every formula (see Formula.getReferences)
+ * and the formulas that refer to every cell. A range (see Formula.getRanges) is a single dependency whatever its size,
+ * kept in its node (see RangeNodes) and matched against a changed cell by its corners.
+ * Not thread safe.
+ */
+public class DependencyGraph {
+    private final CellMap<int[]> references = new CellMap<>();  // cell -> the reference table of its formula (x,y pairs)
+    private final CellMap<int[]> ranges = new CellMap<>();  // cell -> the ranges of its formula (x0,y0,x1,y1 quads)
+    private final CellMap<Set<Long>> dependents = new CellMap<>();  // cell -> the formulas that refer to it
+    private final RangeNodes rangeNodes = new RangeNodes();  // the nodes of the ranges of all the formulas
+    private final CellMap<Set<Long>> rangeDependents = new CellMap<>();  // node -> the formulas with a range in it
+
+    /**
+     * Replaces the precedents of the key cell. The arrays are shared, not copied.
+     * @param refs the reference table of its formula, empty (or null) for none.
+     * @param rangeTable the ranges of its formula, empty (or null) for none.
+     */
+    public void set(long key, int[] refs, int[] rangeTable) {
+        int[] old = references.remove(key);
+        for (int i = 0; old != null && i < old.length; i += 2) {
+            removeDependent(dependents, CellEntry.key(old[i], old[i + 1]), key);
+        }
+        old = ranges.remove(key);
+        for (int i = 0; old != null && i < old.length; i += 4) {
+            removeDependent(rangeDependents, rangeNodes.remove(old[i], old[i + 1], old[i + 2], old[i + 3]), key);
+        }
+        if (refs != null && refs.length > 0) {
+            references.put(key, refs);
+            for (int i = 0; i < refs.length; i += 2) {
+                addDependent(dependents, CellEntry.key(refs[i], refs[i + 1]), key);
+            }
+        }
+        if (rangeTable != null && rangeTable.length > 0) {
+            ranges.put(key, rangeTable);
+            for (int i = 0; i < rangeTable.length; i += 4) {
+                long node = rangeNodes.add(rangeTable[i], rangeTable[i + 1], rangeTable[i + 2], rangeTable[i + 3]);
+                addDependent(rangeDependents, node, key);
+            }
+        }
+    }
+
+    /**
+     * @return the reference table of the key cell, null if it has none.
+     */
+    public int[] references(long key) {
+        return references.get(key);
+    }
+
+    /**
+     * @return the ranges of the key cell, null if it has none.
+     */
+    public int[] ranges(long key) {
+        return ranges.get(key);
+    }
+
+    /**
+     * @return true iff the key cell refers to any cell (or range).
+     */
+    public boolean hasPrecedents(long key) {
+        return references.get(key) != null || ranges.get(key) != null;
+    }
+
+    /**
+     * @return the formulas that refer to the key cell, by a reference or by a range containing it (null for none).
+     * The returned set must not be changed.
+     */
+    public Set<Long> dependentsOf(long key) {
+        Set<Long> deps = dependents.get(key);
+        if (rangeNodes.isEmpty()) {
+            return deps;
+        }
+        int x = CellEntry.keyX(key), y = CellEntry.keyY(key);
+        Set<Long> ans = deps;
+        for (long node : rangeNodes.nodesOf(x, y)) {
+            Set<Long> formulas = rangeDependents.get(node);
+            if (formulas == null) {
+                continue;
+            }
+            for (long f : formulas) {
+                if (RangeNodes.contains(ranges.get(f), x, y)) {
+                    if (ans == deps) {
+                        ans = deps == null ? new LinkedHashSet<>() : new LinkedHashSet<>(deps);
+                    }
+                    ans.add(f);
+                }
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * @return the cells that (transitively) depend on the key cell in topological order (Kahn's algorithm):
+     * every cell comes after its precedents, the cells in (or depending on) a cycle come last.
+     */
+    public List<Long> dependentsInOrder(long key) {
+        Set<Long> affected = new LinkedHashSet<>();
+        Deque<Long> queue = new ArrayDeque<>();
+        queue.add(key);
+        while (!queue.isEmpty()) {
+            Set<Long> deps = dependentsOf(queue.poll());
+            for (long d : deps == null ? Set.<Long>of() : deps) {
+                if (d != key && affected.add(d)) {
+                    queue.add(d);
+                }
+            }
+        }
+        Map<Long, Integer> inDegree = new HashMap<>();
+        for (long k : affected) {
+            Set<Long> deps = dependentsOf(k);
+            for (long d : deps == null ? Set.<Long>of() : deps) {
+                if (affected.contains(d)) {
+                    inDegree.merge(d, 1, Integer::sum);
+                }
+            }
+        }
+        Set<Long> ans = new LinkedHashSet<>();
+        queue.add(key);
+        while (!queue.isEmpty()) {
+            long k = queue.poll();
+            Set<Long> deps = dependentsOf(k);
+            for (long d : deps == null ? Set.<Long>of() : deps) {
+                if (affected.contains(d) && inDegree.merge(d, -1, Integer::sum) == 0) {
+                    ans.add(d);
+                    queue.add(d);
+                }
+            }
+        }
+        ans.addAll(affected);  // the cycles
+        return new ArrayList<>(ans);
+    }
+
+    public void clear() {
+        references.clear();
+        ranges.clear();
+        dependents.clear();
+        rangeNodes.clear();
+        rangeDependents.clear();
+    }
+
+    private static void addDependent(CellMap<Set<Long>> graph, long precedent, long dependent) {
+        Set<Long> deps = graph.get(precedent);
+        if (deps == null) {
+            deps = new HashSet<>();
+            graph.put(precedent, deps);
+        }
+        deps.add(dependent);
+    }
+
+    private static void removeDependent(CellMap<Set<Long>> graph, long precedent, long dependent) {
+        Set<Long> deps = graph.get(precedent);
+        if (deps != null) {
+            deps.remove(dependent);
+            if (deps.isEmpty()) {
+                graph.remove(precedent);
+            }
+        }
+    }
+}
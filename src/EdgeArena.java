@@ -0,0 +1,175 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The edges of a dependency graph stored off the Java heap (in direct ByteBuffers), as CellArena stores the cells:
+ * a multimap from a long key (a cell, or a range node, see RangeNodes) to the keys of the cells depending on it.
+ *
+ * The edges are kept in an open addressing hash table of EDGE byte records, hashed (and linearly probed) by their
+ * from key only, so all the edges of a key are found by a single probe sequence. A record holds the from key and
+ * the to key + 1 (0 for a free record, to is a cell key so it is never negative). Adding an edge twice keeps two.
+ */
+public class EdgeArena {
+    private static final int FROM = 0, TO = 8;
+    /** The size of an edge in bytes. */
+    public static final int EDGE = 16;
+    private static final long[] NONE = new long[0];
+
+    private final int segmentBits;  // a segment holds 2^segmentBits edges
+    private ByteBuffer[] segments;
+    private long capacity;  // the number of records, a power of 2
+    private long size;
+
+    public EdgeArena() {
+        this(20);
+    }
+
+    /**
+     * @param segmentBits the log2 of the number of records per segment (at most 26, so a segment is under 2GB).
+     */
+    EdgeArena(int segmentBits) {
+        this.segmentBits = segmentBits;
+        clear();
+    }
+
+    /**
+     * Releases all the edges (the buffers are freed by the garbage collector).
+     */
+    public void clear() {
+        capacity = 16;
+        segments = allocate(capacity);
+        size = 0;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes allocated off the heap.
+     */
+    public long offHeapBytes() {
+        return capacity * EDGE;
+    }
+
+    /**
+     * Adds the from -> to edge.
+     */
+    public void add(long from, long to) {
+        if (2 * (size + 1) > capacity) {
+            grow();
+        }
+        long mask = capacity - 1;
+        long r = slot(from, mask);
+        while (isUsed(r)) {
+            r = (r + 1) & mask;
+        }
+        segment(r).putLong(offset(r) + FROM, from);
+        segment(r).putLong(offset(r) + TO, to + 1);
+        size++;
+    }
+
+    /**
+     * Removes a from -> to edge (if any).
+     */
+    public void remove(long from, long to) {
+        long mask = capacity - 1;
+        long r = slot(from, mask);
+        while (isUsed(r) && (from(r) != from || to(r) != to)) {
+            r = (r + 1) & mask;
+        }
+        if (!isUsed(r)) {
+            return;
+        }
+        // Shifts back the following records of the probe sequence, as CellArena.remove
+        long free = r;
+        for (long j = (r + 1) & mask; isUsed(j); j = (j + 1) & mask) {
+            long home = slot(from(j), mask);
+            if (((j - home) & mask) >= ((j - free) & mask)) {
+                copy(segment(j), offset(j), segment(free), offset(free));
+                free = j;
+            }
+        }
+        segment(free).putLong(offset(free) + TO, 0);
+        size--;
+    }
+
+    /**
+     * @return the to keys of all the edges from the given key (once per edge), in no particular order.
+     */
+    public long[] get(long from) {
+        long[] ans = NONE;
+        int n = 0;
+        long mask = capacity - 1;
+        for (long r = slot(from, mask); isUsed(r); r = (r + 1) & mask) {
+            if (from(r) == from) {
+                if (n == ans.length) {
+                    ans = Arrays.copyOf(ans, Math.max(4, 2 * n));
+                }
+                ans[n++] = to(r);
+            }
+        }
+        return n == ans.length ? ans : Arrays.copyOf(ans, n);
+    }
+
+    private boolean isUsed(long r) {
+        return segment(r).getLong(offset(r) + TO) != 0;
+    }
+
+    private long from(long r) {
+        return segment(r).getLong(offset(r) + FROM);
+    }
+
+    private long to(long r) {
+        return segment(r).getLong(offset(r) + TO) - 1;
+    }
+
+    /**
+     * Doubles the number of records, rehashing all the used ones.
+     */
+    private void grow() {
+        ByteBuffer[] old = segments;
+        long oldCapacity = capacity;
+        capacity *= 2;
+        segments = allocate(capacity);
+        long mask = capacity - 1;
+        for (long r = 0; r < oldCapacity; r++) {
+            ByteBuffer from = old[(int) (r >>> segmentBits)];
+            int at = (int) (r & ((1L << segmentBits) - 1)) * EDGE;
+            if (from.getLong(at + TO) != 0) {
+                long j = slot(from.getLong(at + FROM), mask);
+                while (isUsed(j)) {
+                    j = (j + 1) & mask;
+                }
+                copy(from, at, segment(j), offset(j));
+            }
+        }
+    }
+
+    private ByteBuffer[] allocate(long records) {
+        long perSegment = Math.min(records, 1L << segmentBits);
+        ByteBuffer[] ans = new ByteBuffer[(int) ((records + perSegment - 1) / perSegment)];
+        for (int i = 0; i < ans.length; i++) {
+            ans[i] = ByteBuffer.allocateDirect((int) (perSegment * EDGE));  // zeroed, all the records are free
+        }
+        return ans;
+    }
+
+    private static void copy(ByteBuffer from, int at, ByteBuffer to, int toAt) {
+        to.putLong(toAt + FROM, from.getLong(at + FROM));
+        to.putLong(toAt + TO, from.getLong(at + TO));
+    }
+
+    private ByteBuffer segment(long r) {
+        return segments[(int) (r >>> segmentBits)];
+    }
+
+    private int offset(long r) {
+        return (int) (r & ((1L << segmentBits) - 1)) * EDGE;
+    }
+
+    private static long slot(long key, long mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (h ^ (h >>> 32)) & mask;
+    }
+}
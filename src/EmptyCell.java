@@ -0,0 +1,44 @@
+/**
+ * The (immutable) cell of every empty entry of a sparse sheet, a single instance is shared by all of them.
+ * To change an empty entry use Sheet.set(x, y, data).
+ */
+public final class EmptyCell implements Cell {
+    public static final EmptyCell INSTANCE = new EmptyCell();
+
+    private EmptyCell() {}
+
+    @Override
+    public String getData() {
+        return Ex2Utils.EMPTY_CELL;
+    }
+
+    @Override
+    public void setData(String s) {
+        throw new UnsupportedOperationException("An empty cell can not be changed, use Sheet.set(x, y, data)");
+    }
+
+    @Override
+    public int getType() {
+        return Ex2Utils.TEXT;
+    }
+
+    @Override
+    public void setType(int t) {
+        throw new UnsupportedOperationException("An empty cell can not be changed, use Sheet.set(x, y, data)");
+    }
+
+    @Override
+    public int getOrder() {
+        return 0;
+    }
+
+    @Override
+    public void setOrder(int t) {
+        throw new UnsupportedOperationException("An empty cell can not be changed, use Sheet.set(x, y, data)");
+    }
+
+    @Override
+    public String toString() {
+        return Ex2Utils.EMPTY_CELL;
+    }
+}
@@ -88,16 +88,31 @@ public class Ex2GUI {
 			StdDrawEx2.line(xs, 0, xs, max_y);
 			int yy = max_y - (y + 1);
 			StdDrawEx2.text(1, y + y_height, "" + (yy));
-			StdDrawEx2.text(xc, max_y + y_height, "" + Ex2Utils.ABC[y]);
+			if (y < columns()) {
+				StdDrawEx2.text(xc, max_y + y_height, columnName(y));
+			}
 		}
 	}
+	/**
+	 * @return the number of columns drawn: the sheet can grow wider than the labeled columns (Ex2Utils.ABC).
+	 */
+	private static int columns() {
+		return Math.min(table.width(), Ex2Utils.ABC.length);
+	}
+	/**
+	 * @return the name of column x (e.g., "A"), as in the names of its cells (see CellEntry.name).
+	 */
+	private static String columnName(int x) {
+		String name = CellEntry.name(x, 0);
+		return name.substring(0, name.length() - 1);
+	}
 	/**
 	 * Draws the content of each cell (none empty).
 	 */
 	private static void drawCells() {
 		StdDrawEx2.setPenColor(StdDrawEx2.BLACK);
 		int max_y = table.height();
-		int maxx = table.width();
+		int maxx = columns();
 		double x_space = Ex2Utils.GUI_X_SPACE, x_start = Ex2Utils.GUI_X_START;
 		double y_height = Ex2Utils.GUI_Y_TEXT_START;
 		for (int x = 0; x < maxx; x = x + 1) {
@@ -123,7 +138,7 @@ public class Ex2GUI {
 	private static void inputCell(int xx,int yy) {
 		if(table.isIn(xx,yy)) {
 			Cell cc = table.get(xx,yy);
-			String cellRef = Ex2Utils.ABC[xx] + yy;
+			String cellRef = CellEntry.name(xx, yy);
 			String ww = cellRef + ": " + cc.toString();
 			StdDrawEx2.text(Ex2Utils.GUI_X_START, Ex2Utils.MAX_X-1, ww);
 			StdDrawEx2.show();
@@ -1,19 +1,31 @@
 import java.io.*;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class Ex2Sheet implements Sheet {
-    private Cell[][] table;
-    private Set<String> processingCells;  // Add this line
+    private static final int PARALLEL_THRESHOLD = 256;  // levels (or parts of a level) smaller than that are evaluated sequentially
+
+    private CellMap<Cell> table;  // only the formulas (and the numbers not stored by column), by their packed x,y key
+    private NumberColumns numbers;  // the cells holding (the canonical text of) a number, by columns
+    private TextColumns texts;  // the text cells, dictionary encoded by columns
+    private int width, height;  // grows (see set) to include every stored cell
+    private DependencyGraph graph;  // the precedents and dependents of the formulas
+    private int evalError;  // the error type of the last evalNumber call
+    private boolean batch;  // true between beginBatch() and commit()
+    private Set<Long> batchChanged;  // the cells set since beginBatch()
+    private ForkJoinPool pool;  // evaluates the cells of a level in parallel, null for sequential evaluation
+    private RecalcListener listener;
+    private RangeIndex rangeIndex;  // the values of the cells by columns for the range functions, null unless enabled
 
     public Ex2Sheet(int x, int y) {
-        table = new SCell[x][y];
-        for(int i = 0; i < x; i++) {
-            for(int j = 0; j < y; j++) {
-                table[i][j] = new SCell("");
-            }
-        }
-        processingCells = new HashSet<>();  // Add this line
+        table = new CellMap<>();
+        numbers = new NumberColumns();
+        texts = new TextColumns();
+        width = x;
+        height = y;
+        graph = new DependencyGraph();
+        batchChanged = new LinkedHashSet<>();
         eval();
     }
 
@@ -22,163 +34,598 @@ public class Ex2Sheet implements Sheet {
         this(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
     }
 
-    private String evaluateFormula(String formula, int currentX, int currentY) {
-        if (!formula.startsWith("=")) {
-            return formula;
+    @Override
+    public String value(int x, int y) {
+        String ans = Ex2Utils.EMPTY_CELL;
+        Cell c = get(x,y);
+        if (c instanceof SCell && c.getType() != Ex2Utils.TEXT && c.getType() != Ex2Utils.NUMBER) {
+            // Formulas are computed as doubles, this is the only place they are formatted
+            double v = evalNumber(x, y);
+            if (evalError == Ex2Utils.ERR_CYCLE_FORM) {
+                ans = Ex2Utils.ERR_CYCLE;
+            } else if (evalError != 0) {
+                ans = Ex2Utils.ERR_FORM;
+            } else {
+                ans = String.valueOf(v);
+            }
+        } else if (c != null) {
+            ans = c.toString();
         }
+        return ans;
+    }
 
-        StringBuilder processedFormula = new StringBuilder("=");
-        StringBuilder cellRef = new StringBuilder();
-        boolean inCellRef = false;
+    /**
+     * Evaluates the x,y cell as a number, without going through its String representation.
+     * @param x integer, x-coordinate of the cell.
+     * @param y integer, y-coordinate of the cell.
+     * @return the value of a number or a formula cell, NaN if it has no numeric value (see getEvalError()).
+     */
+    public double evalNumber(int x, int y) {
+        double number = numbers.get(x, y);
+        if (!Double.isNaN(number)) {
+            evalError = 0;
+            return number;
+        }
+        Cell cell = get(x, y);
+        if (cell instanceof SCell) {
+            SCell s = (SCell) cell;
+            if (s.isProcessing()) {
+                evalError = Ex2Utils.ERR_CYCLE_FORM;
+                return Double.NaN;
+            }
+            double v = s.getValue();  // might evaluate its precedents
+            evalError = s.getValueError();
+            return evalError == 0 ? v : Double.NaN;
+        }
+        if (cell != null && cell.getType() == Ex2Utils.NUMBER) {
+            evalError = 0;
+            return Double.parseDouble(cell.getData());
+        }
+        // Text, empty or outside of this sheet
+        evalError = Ex2Utils.ERR_FORM_FORMAT;
+        return Double.NaN;
+    }
 
-        for (int i = 1; i < formula.length(); i++) {
-            char c = formula.charAt(i);
+    /**
+     * @return the error type of the last evalNumber call (Ex2Utils.ERR_FORM_FORMAT or ERR_CYCLE_FORM), 0 if it was valid.
+     */
+    public int getEvalError() {
+        return evalError;
+    }
 
-            if (Character.isLetter(c) && i + 1 < formula.length() &&
-                    Character.isDigit(formula.charAt(i + 1))) {
-                inCellRef = true;
-                cellRef.append(c);
-                continue;
+    /**
+     * Returns the Cell in the x,y, position (or null if not in),
+     * all the empty entries share the immutable EmptyCell.INSTANCE, a number or a text is returned as a (new) ColumnCell view.
+     */
+    @Override
+    public Cell get(int x, int y) {
+        if (isIn( x, y)){
+            if (numbers.contains(x, y)) {
+                return new ColumnCell(x, y, Ex2Utils.NUMBER);
+            }
+            if (texts.contains(x, y)) {
+                return new ColumnCell(x, y, Ex2Utils.TEXT);
             }
+            Cell c = table.get(CellEntry.key(x, y));
+            return c != null ? c : EmptyCell.INSTANCE;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return the value of the x,y cell if it holds a number (stored by column), NaN otherwise.
+     * Read by the formulas without creating a Cell.
+     */
+    double number(int x, int y) {
+        return numbers.get(x, y);
+    }
+
+    /**
+     * @return true iff the x,y cell is a text (stored by column).
+     */
+    boolean isText(int x, int y) {
+        return texts.contains(x, y);
+    }
+
+    /**
+     * Returns the Cell of a packed x,y key (see CellEntry.key and CellEntry.parse), or null if not in.
+     */
+    public Cell get(long key) {
+        return get(CellEntry.keyX(key), CellEntry.keyY(key));
+    }
+
+    @Override
+    public Cell get(String cords) {
+        // Parsed in place, no CellEntry is created
+        long key = cords == null ? CellEntry.INVALID : CellEntry.parse(cords, 0, cords.length());
+        return key == CellEntry.INVALID ? null : get(key);
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Sets the x,y cell, a cell outside of this sheet grows the sheet to include it (if it is addressable,
+     * see CellEntry.isAddressable, any other cell is ignored).
+     */
+    @Override
+    public void set(int x, int y, String s) {
+        if (!CellEntry.isAddressable(x, y) || (!isIn(x, y) && (s == null || s.isEmpty()))) {
+            return;
+        }
+        // The storage is sparse, growing is only a change of the bounds (x + 1 and y + 1 do not overflow, see isAddressable)
+        width = Math.max(width, x + 1);
+        height = Math.max(height, y + 1);
+        store(x, y, s);
+        if (batch) {
+            batchChanged.add(CellEntry.key(x, y));
+            return;
+        }
+        long key = CellEntry.key(x, y);
+        boolean hadReferences = graph.hasPrecedents(key);
+        updateDependencies(x, y);
+        // A new value (rather than new references) can not make a cycle or change any order, so only the
+        // dependents that read the previous values need to be recalculated (see SCell.isLive)
+        boolean valueOnly = !hadReferences && !graph.hasPrecedents(key);
+        Set<Long> affected = affectedBy(Collections.singleton(key), valueOnly);
+        for (long k : affected) {
+            markDirty(k);
+        }
+        recalc(affected);
+    }
+
+    /**
+     * Starts a batch of changes: the following set() calls only store their cells,
+     * the dependencies and values are updated once by commit().
+     * Values read before commit() might not reflect the changes of the batch.
+     */
+    public void beginBatch() {
+        batch = true;
+    }
+
+    /**
+     * Ends the current batch of changes: updates the dependency graph of all the changed cells
+     * and re-evaluates them (and their dependents) in a single topologically ordered pass.
+     */
+    public void commit() {
+        batch = false;
+        for (long k : batchChanged) {
+            updateDependencies(CellEntry.keyX(k), CellEntry.keyY(k));
+        }
+        Set<Long> affected = affectedBy(batchChanged, false);
+        batchChanged.clear();
+        for (long k : affected) {
+            markDirty(k);
+        }
+        recalc(affected);
+    }
+
+    @Override
+    public void eval() {
+        batchChanged.clear();
+        // Rebuild the dependency graph and evaluate every cell in topological order
+        graph.clear();
+        if (rangeIndex != null) {
+            rangeIndex = new RangeIndex();
+        }
+        // Empty entries have nothing to evaluate, only the stored cells are visited
+        List<Long> all = new ArrayList<>();
+        for (long k : sortedKeys()) {
+            updateDependencies(CellEntry.keyX(k), CellEntry.keyY(k));
+            all.add(k);
+        }
+        recalc(all);
+    }
 
-            if (inCellRef && Character.isDigit(c)) {
-                cellRef.append(c);
+    /**
+     * Replaces the precedents of the x,y cell in the dependency graph with the references of its current formula.
+     * A range is a single dependency (see DependencyGraph), whatever the number of its cells.
+     */
+    private void updateDependencies(int x, int y) {
+        Cell cell = get(x, y);
+        // The reference table of the formula is shared, not copied (each cell appears in it once).
+        // References outside of the sheet are kept too: setting such a cell grows the sheet and recalculates its dependents
+        if (cell instanceof SCell) {
+            graph.set(CellEntry.key(x, y), ((SCell) cell).getReferences(), ((SCell) cell).getRanges());
+        } else {
+            graph.set(CellEntry.key(x, y), null, null);
+        }
+    }
+
+    /**
+     * Collects the given cells and all the cells that (transitively) depend on them.
+     * @param valueOnly true if the references did not change, the formulas whose last evaluation did not read
+     * a changed cell (it is only in untaken IF branches) are then skipped, along with their own dependents.
+     */
+    private Set<Long> affectedBy(Collection<Long> changed, boolean valueOnly) {
+        Set<Long> affected = new LinkedHashSet<>(changed);
+        Deque<Long> queue = new ArrayDeque<>(changed);
+        while (!queue.isEmpty()) {
+            long k = queue.poll();
+            Set<Long> deps = graph.dependentsOf(k);
+            if (deps == null) {
                 continue;
             }
-
-            if (inCellRef) {
-                // Process cell reference
-                Cell referencedCell = get(cellRef.toString());
-                if (referencedCell != null) {
-                    processedFormula.append(referencedCell.getData());
-                } else {
-                    processedFormula.append("0");
+            for (long d : deps) {
+                if ((!valueOnly || isLive(d, k)) && affected.add(d)) {
+                    queue.add(d);
                 }
-                cellRef.setLength(0);
-                inCellRef = false;
             }
-
-            processedFormula.append(c);
         }
+        return affected;
+    }
 
-        // Handle last cell reference if any
-        if (inCellRef) {
-            Cell referencedCell = get(cellRef.toString());
-            if (referencedCell != null) {
-                processedFormula.append(referencedCell.getData());
-            } else {
-                processedFormula.append("0");
+    /**
+     * Re-evaluates the given cells in topological order (Kahn's algorithm), precedents outside
+     * the given cells are assumed to be up to date. Cells that are never freed are part of
+     * (or depend on) a cycle and are marked as ERR_CYCLE_FORM, so are the cells referring to a cycle outside
+     * of the given cells (see evaluateCell): the result does not depend on the order of the edits.
+     * The cells are evaluated level by level: all the cells of a level only depend on cells of the
+     * previous levels, so with a parallelism above 1 each level is evaluated on the pool.
+     */
+    private void recalc(Collection<Long> cells) {
+        Set<Long> pending = new HashSet<>(cells);
+        Map<Long, Integer> inDegree = new HashMap<>();
+        // Counted from the dependents of the given cells rather than from the precedents of every formula,
+        // so a formula over a large range (e.g., SUM(A0:Z10000)) only costs the references that actually changed
+        for (long k : cells) {
+            Set<Long> deps = graph.dependentsOf(k);
+            if (deps == null) {
+                continue;
+            }
+            for (long d : deps) {
+                if (pending.contains(d)) {
+                    inDegree.merge(d, 1, Integer::sum);
+                }
             }
         }
-
-        double result = SCell.computeForm(processedFormula.toString());
-        if (result == -1) {
-            return Ex2Utils.ERR_FORM;
+        List<Long> level = new ArrayList<>();
+        for (long k : cells) {
+            if (!inDegree.containsKey(k)) {
+                inDegree.put(k, 0);
+                level.add(k);
+            }
         }
-        return String.valueOf(result);
+        while (!level.isEmpty()) {
+            evaluateLevel(level);
+            List<Long> next = new ArrayList<>();
+            for (long k : level) {
+                pending.remove(k);
+                index(k);  // before the next level, which might read it through a range
+                Set<Long> deps = graph.dependentsOf(k);
+                if (deps == null) {
+                    continue;
+                }
+                for (long d : deps) {
+                    Integer count = inDegree.get(d);
+                    if (count != null && count > 0) {
+                        inDegree.put(d, count - 1);
+                        if (count == 1) {
+                            next.add(d);
+                        }
+                    }
+                }
+            }
+            level = next;
+        }
+        for (long k : pending) {
+            Cell cell = get(k);
+            if (cell instanceof SCell) {  // only formulas have precedents
+                ((SCell) cell).setCycle();
+            }
+            index(k);
+        }
+        if (listener != null) {
+            for (long k : cells) {
+                listener.recalculated(CellEntry.keyX(k), CellEntry.keyY(k));
+            }
+        }
+    }
+
+    /**
+     * Receives the cells of every recalculation (the set cells and their dependents), once all of them are evaluated.
+     */
+    public interface RecalcListener {
+        void recalculated(int x, int y);
     }
 
-    private String evaluateCellReference(String ref) {
-        // Convert cell reference (e.g., "A1") to coordinates
-        ref = ref.toUpperCase();
-        int col = ref.charAt(0) - 'A';
-        int row = Integer.parseInt(ref.substring(1));
+    /**
+     * @param listener called (on the calling thread) for every recalculated cell, null for none.
+     */
+    public void setRecalcListener(RecalcListener listener) {
+        this.listener = listener;
+    }
 
-        if (!isIn(col, row)) {
-            return Ex2Utils.ERR_FORM;
+    private void evaluateLevel(List<Long> level) {
+        if (pool == null || level.size() < PARALLEL_THRESHOLD) {
+            for (long k : level) {
+                evaluateCell(k);
+            }
+        } else {
+            long[] keys = new long[level.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = level.get(i);
+            }
+            // Returns once the whole level is evaluated (the barrier before the next level)
+            pool.invoke(new LevelTask(keys, 0, keys.length));
         }
+    }
 
-        Cell cell = get(col, row);
-        if (cell == null || cell.getData().isEmpty()) {
-            return "0";
+    private void evaluateCell(long k) {
+        Cell cell = get(k);
+        if (cell instanceof SCell) {
+            // The precedents are already evaluated (or were not changed), so is their order
+            int order = orderOf(k);
+            if (order == Ex2Utils.ERR) {
+                // A precedent is in (or depends on) a cycle, even if only read by an untaken branch: as eval() finds
+                ((SCell) cell).setCycle();
+                return;
+            }
+            cell.setOrder(order);
+            ((SCell) cell).evaluate();
         }
+    }
 
-        // If the referenced cell is a number, return it directly
-        if (cell.getType() == Ex2Utils.NUMBER) {
-            return cell.getData();
+    /**
+     * Evaluates the cells keys[from, to) of a single level, splitting the range between the workers of the pool.
+     */
+    private class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long[] keys;
+        private final int from, to;
+
+        LevelTask(long[] keys, int from, int to) {
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
         }
 
-        // If the referenced cell is a formula, evaluate it
-        if (cell.getType() == Ex2Utils.FORM) {
-            return eval(col, row);
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    evaluateCell(keys[i]);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LevelTask(keys, from, mid), new LevelTask(keys, mid, to));
+            }
         }
+    }
 
-        // For text cells, try to parse as number, return 0 if not possible
-        try {
-            Double.parseDouble(cell.getData());
-            return cell.getData();
-        } catch (NumberFormatException e) {
-            return "0";
+    /**
+     * Sets the number of threads used to evaluate the cells of each dependency level.
+     * @param parallelism 1 (the default) evaluates on the calling thread only.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
         }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
     }
 
+    public int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
 
+    /**
+     * @return 0 if the cell has no precedents, else 1 + the max order of its precedents (-1 if any of them is -1).
+     */
+    private int orderOf(long k) {
+        int[] refs = graph.references(k), ranges = graph.ranges(k);
+        if (refs == null && ranges == null) {
+            return 0;
+        }
+        int max = 0;
+        for (int i = 0; refs != null && i < refs.length; i += 2) {
+            Cell cell = get(refs[i], refs[i + 1]);
+            int o = cell == null ? 0 : cell.getOrder();  // outside of the sheet, empty
+            if (o == Ex2Utils.ERR) {
+                return Ex2Utils.ERR;
+            }
+            max = Math.max(max, o);
+        }
+        for (int i = 0; ranges != null && i < ranges.length; i += 4) {
+            int o = rangeOrder(ranges[i], ranges[i + 1], ranges[i + 2], ranges[i + 3]);
+            if (o == Ex2Utils.ERR) {
+                return Ex2Utils.ERR;
+            }
+            max = Math.max(max, o);
+        }
+        return max + 1;
+    }
 
+    /**
+     * @return the max order of the cells of a range (only formulas have an order), -1 if any of them is -1.
+     * O(w log(height)) for a range of w columns with the range index (see RangeIndex.maxOrder), else a loop over its cells.
+     */
+    private int rangeOrder(int x0, int y0, int x1, int y1) {
+        x1 = Math.min(x1, width() - 1);  // the cells outside of the sheet are empty
+        y1 = Math.min(y1, height() - 1);
+        int indexed = rangeIndex == null ? RangeIndex.UNKNOWN : rangeIndex.maxOrder(x0, y0, x1, y1);
+        if (indexed != RangeIndex.UNKNOWN) {
+            return indexed;
+        }
+        int max = 0;
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                Cell cell = table.get(CellEntry.key(x, y));
+                int o = cell == null ? 0 : cell.getOrder();
+                if (o == Ex2Utils.ERR) {
+                    return Ex2Utils.ERR;
+                }
+                max = Math.max(max, o);
+            }
+        }
+        return max;
+    }
 
-    @Override
-    public String value(int x, int y) {
-        String ans = Ex2Utils.EMPTY_CELL;
-        Cell c = get(x,y);
-        if (c != null) {
-            ans = c.toString();
+    /**
+     * Maintains (or drops) an index of the values of every column (see RangeIndex), so a range function
+     * (e.g., SUM(A1:A100000)) costs O(log(height)) per column of its range instead of a loop over all of its cells,
+     * and so does the order of such a formula on every recalculation (see rangeOrder).
+     * Every recalculated cell updates the index in O(log(height)). Disabled by default.
+     */
+    public void setRangeIndex(boolean enabled) {
+        if (!enabled) {
+            rangeIndex = null;
+        } else if (rangeIndex == null) {
+            rangeIndex = new RangeIndex();
+            for (long k : table.keys()) {
+                index(k);
+            }
+            for (long k : numbers.keys()) {
+                index(k);
+            }
         }
-        return ans;
     }
 
-    @Override
-    public Cell get(int x, int y) {
-        if (isIn( x, y)){
-            return table[x][y];
+    public boolean hasRangeIndex() {
+        return rangeIndex != null;
+    }
+
+    /**
+     * Folds a range into the sum, count, min and max at acc[at..at+3] with the range index (see RangeIndex.fold).
+     * @return false if there is no index or a cell of the range has an error, the range is then read cell by cell.
+     */
+    boolean foldRange(int x0, int y0, int x1, int y1, double[] acc, int at) {
+        return rangeIndex != null && rangeIndex.fold(x0, y0, x1, y1, acc, at);
+    }
+
+    /**
+     * Updates the range index with the current value of a cell.
+     */
+    private void index(long k) {
+        if (rangeIndex == null) {
+            return;
+        }
+        int x = CellEntry.keyX(k), y = CellEntry.keyY(k);
+        double number = numbers.get(x, y);
+        if (!Double.isNaN(number)) {
+            rangeIndex.set(x, y, number, 0);
+            return;
+        }
+        Cell cell = get(k);
+        if (!(cell instanceof SCell) || cell.getType() == Ex2Utils.TEXT) {
+            rangeIndex.clear(x, y);
+            return;
+        }
+        SCell s = (SCell) cell;
+        double v = s.getValue();
+        if (s.getValueError() != 0) {
+            rangeIndex.setError(x, y, s.getOrder());
         } else {
-            return null;
+            rangeIndex.set(x, y, v, s.getOrder());
         }
     }
 
-    @Override
-    public Cell get(String cords) {
-        CellEntry entry = new CellEntry(cords);
-        if (entry.isValid() && isIn(entry.getX(), entry.getY())){
-            return table [entry.getX()] [entry.getY()];
+    private boolean isLive(long formula, long reference) {
+        Cell cell = get(formula);
+        return !(cell instanceof SCell) || ((SCell) cell).isLive(CellEntry.keyX(reference), CellEntry.keyY(reference));
+    }
+
+    private void markDirty(long k) {
+        Cell cell = get(k);
+        if (cell instanceof SCell) {
+            ((SCell) cell).markDirty();
         }
-        Cell ans = null;
-        return ans;
     }
 
-    @Override
-    public int width() {
-        return table.length;
+    /**
+     * Stores the data of the x,y cell (without updating the dependencies or any value): a number or a text
+     * is stored by column, any other data (a formula, or a number in another format) as an SCell.
+     */
+    private void store(int x, int y, String s) {
+        long key = CellEntry.key(x, y);
+        if (numbers.put(x, y, s)) {
+            table.remove(key);  // a number takes no Cell
+            texts.remove(x, y);
+        } else if (texts.put(x, y, s)) {
+            table.remove(key);  // neither does a text
+        } else if (s == null || s.isEmpty()) {
+            table.remove(key);
+        } else {
+            SCell c = new SCell(s);
+            c.setSheet(this);  // Set the parent sheet
+            table.put(key, c);
+        }
     }
 
-    @Override
-    public int height() {
-        return table[0].length;
+    /**
+     * @return the keys of all the none empty cells (the numbers, texts and the other cells), in x,y order.
+     */
+    private long[] sortedKeys() {
+        return merge(merge(table.sortedKeys(), numbers.keys()), texts.keys());
     }
 
-    @Override
-    public void set(int x, int y, String s) {
-        if (isIn(x, y)) {
-            Cell c = new SCell(s);
-            if (c instanceof SCell) {  // Type check for safety
-                ((SCell)c).setSheet(this);  // Set the parent sheet
-            }
-            table[x][y] = c;
-            eval();
+    private static long[] merge(long[] a, long[] b) {
+        long[] ans = new long[a.length + b.length];
+        for (int i = 0, j = 0, n = 0; n < ans.length; n++) {
+            ans[n] = j == b.length || (i < a.length && a[i] < b[j]) ? a[i++] : b[j++];
         }
+        return ans;
     }
 
-    @Override
-    public void eval() {
-        processingCells.clear();
-        // First, mark any cycles
-        int[][] depths = depth();
-
-        // Then evaluate all cells
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                if (get(i, j).getType() == Ex2Utils.FORM) {
-                    eval(i, j);
-                }
-            }
+    /**
+     * A view of a number or a text cell (see NumberColumns and TextColumns), a new one is returned by every get.
+     */
+    private class ColumnCell implements Cell {
+        private final int x, y, type;
+
+        ColumnCell(int x, int y, int type) {
+            this.x = x;
+            this.y = y;
+            this.type = type;
+        }
+
+        @Override
+        public String getData() {
+            String data = type == Ex2Utils.NUMBER ? numbers.text(x, y) : texts.get(x, y);
+            return data == null ? Ex2Utils.EMPTY_CELL : data;
+        }
+
+        /**
+         * As SCell.setData, only changes this cell: its dependents are not recalculated (use Sheet.set for that).
+         */
+        @Override
+        public void setData(String s) {
+            store(x, y, s);
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
+
+        @Override
+        public void setType(int t) {
+            throw new UnsupportedOperationException("The type of a number or a text cell is set by its data");
+        }
+
+        @Override
+        public int getOrder() {
+            return 0;
+        }
+
+        @Override
+        public void setOrder(int t) {
+            throw new UnsupportedOperationException("The order of a number or a text cell is always 0");
+        }
+
+        @Override
+        public String toString() {
+            return getData();
         }
     }
 
@@ -187,14 +634,17 @@ public class Ex2Sheet implements Sheet {
         return xx >= 0 && yy >= 0 && xx < width() && yy < height();
     }
 
+    /**
+     * Returns the dependency depth of every cell: the order every recalculation already keeps in its formula
+     * (see evaluateCell), so a range counts as a single dependency rather than as a walk over its cells.
+     * Cells in (or depending on) a cycle are -1.
+     * Note: changes made inside a batch are only part of the orders after commit().
+     */
     @Override
     public int[][] depth() {
         int[][] ans = new int[width()][height()];
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                Cell cell = get(i,j);
-                ans[i][j] = cell.getOrder();
-            }
+        for (long k : table.keys()) {
+            ans[CellEntry.keyX(k)][CellEntry.keyY(k)] = table.get(k).getOrder();  // numbers and texts are 0
         }
         return ans;
     }
@@ -202,54 +652,137 @@ public class Ex2Sheet implements Sheet {
     @Override
     public void load(String fileName) throws IOException {
         // Clear existing data
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                table[i][j] = new SCell("");
-            }
+        table.clear();
+        numbers.clear();
+        texts.clear();
+        graph.clear();
+        if (rangeIndex != null) {
+            rangeIndex = new RangeIndex();
         }
 
-        BufferedReader reader = new BufferedReader(new FileReader(fileName));
-        String line = reader.readLine(); // Skip header line
-
-        while ((line = reader.readLine()) != null) {
-            // Split by comma, but not commas inside quotes
-            String[] parts = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)", -1);
+        // The cells are only evaluated once the whole file is read
+        beginBatch();
+        try {
+            // Cells outside of the sheet grow it
+            SheetReader.read(fileName, this::set);
+        } finally {
+            commit();
+        }
+    }
 
-            if (parts.length >= 3) {
-                try {
-                    int x = Integer.parseInt(parts[0].trim());
-                    int y = Integer.parseInt(parts[1].trim());
-                    String value = parts[2].trim();
 
-                    if (isIn(x, y)) {
-                        set(x, y, value);
-                    }
-                } catch (NumberFormatException e) {
-                    // Skip invalid lines
-                    continue;
+    /**
+     * Saves this sheet in the binary snapshot format (see SnapshotWriter): the text dictionary, the numbers,
+     * and every other cell with its type, order, computed value and compiled formula,
+     * so loadSnapshot neither parses nor evaluates anything.
+     * Every section is in x,y order and a key is written as the (variable length) difference from the previous one.
+     */
+    public void saveSnapshot(String fileName) throws IOException {
+        try (SnapshotWriter out = new SnapshotWriter(fileName)) {
+            out.writeVarInt(width);
+            out.writeVarInt(height);
+            // The dictionary (null for a free id), then the text cells by id
+            out.writeVarInt(texts.idLimit());
+            for (int id = 0; id < texts.idLimit(); id++) {
+                out.writeString(texts.text(id));
+            }
+            long[] keys = texts.keys();
+            out.writeVarInt(keys.length);
+            long last = 0;
+            for (long k : keys) {
+                out.writeVarLong(k - last);
+                out.writeVarInt(texts.id(CellEntry.keyX(k), CellEntry.keyY(k)));
+                last = k;
+            }
+            // An integral number is written as a long, any other as a double
+            keys = numbers.keys();
+            out.writeVarInt(keys.length);
+            last = 0;
+            for (long k : keys) {
+                int x = CellEntry.keyX(k), y = CellEntry.keyY(k);
+                out.writeVarLong(k - last);
+                if (numbers.isIntegral(x, y)) {
+                    out.writeByte(1);
+                    out.writeVarLong((long) numbers.get(x, y));
+                } else {
+                    out.writeByte(0);
+                    out.writeDouble(numbers.get(x, y));
                 }
+                last = k;
+            }
+            keys = table.sortedKeys();
+            out.writeVarInt(keys.length);
+            last = 0;
+            for (long k : keys) {
+                out.writeVarLong(k - last);
+                ((SCell) table.get(k)).writeTo(out);
+                last = k;
             }
         }
-        reader.close();
-        eval(); // Evaluate all formulas after loading
     }
 
+    /**
+     * Loads a snapshot written by saveSnapshot with a single sequential read of the (memory mapped) file.
+     * The cells keep their saved values, only the dependency graph is rebuilt (from the reference tables of the
+     * formulas, which are part of the snapshot). Unlike load, the recalculation listener is not called.
+     * @throws IOException if the file can not be read, or is not a snapshot of the current version (see SnapshotReader).
+     */
+    public void loadSnapshot(String fileName) throws IOException {
+        try (SnapshotReader in = new SnapshotReader(fileName)) {
+            table.clear();
+            numbers.clear();
+            texts.clear();
+            graph.clear();
+            batchChanged.clear();
+            width = in.readVarInt();
+            height = in.readVarInt();
+            String[] dictionary = new String[in.readVarInt()];
+            for (int id = 0; id < dictionary.length; id++) {
+                dictionary[id] = in.readString();
+            }
+            long k = 0;
+            for (int n = in.readVarInt(); n > 0; n--) {
+                k += in.readVarLong();
+                texts.putText(CellEntry.keyX(k), CellEntry.keyY(k), dictionary[in.readVarInt()]);
+            }
+            k = 0;
+            for (int n = in.readVarInt(); n > 0; n--) {
+                k += in.readVarLong();
+                boolean integral = in.readByte() != 0;
+                double value = integral ? in.readVarLong() : in.readDouble();
+                numbers.put(CellEntry.keyX(k), CellEntry.keyY(k), value, integral);
+            }
+            k = 0;
+            for (int n = in.readVarInt(); n > 0; n--) {
+                k += in.readVarLong();
+                SCell cell = SCell.readFrom(in);
+                cell.setSheet(this);
+                table.put(k, cell);
+            }
+        }
+        // In x,y order: inserting in the order of the table's own slots would cluster the maps of the graph
+        for (long k : table.sortedKeys()) {
+            updateDependencies(CellEntry.keyX(k), CellEntry.keyY(k));
+        }
+        if (rangeIndex != null) {
+            rangeIndex = null;
+            setRangeIndex(true);
+        }
+    }
 
     @Override
     public void save(String fileName) throws IOException {
-        PrintWriter writer = new PrintWriter(new FileWriter(fileName));
-        writer.println("SpreadSheet (Ex2)- saved spreadsheet");
-
-        for (int x = 0; x < width(); x++) {
-            for (int y = 0; y < height(); y++) {
-                Cell cell = get(x, y);
-                if (cell != null && !cell.getData().isEmpty()) {
+        try (SheetWriter writer = new SheetWriter(fileName)) {
+            writer.writeLine("SpreadSheet (Ex2)- saved spreadsheet");
+            // Only the none empty cells are stored (and visited), in x,y order
+            for (long k : sortedKeys()) {
+                Cell cell = get(k);
+                if (!cell.getData().isEmpty()) {
                     // Format: x,y,value[,optional remarks]
-                    writer.println(x + "," + y + "," + cell.getData());
+                    writer.writeCell(CellEntry.keyX(k), CellEntry.keyY(k), cell.getData());
                 }
             }
         }
-        writer.close();
     }
 
     @Override
@@ -263,68 +796,11 @@ public class Ex2Sheet implements Sheet {
             return null;
         }
 
-        if (cell.getType() == Ex2Utils.FORM) {
-            String result = evaluateFormula(cell.getData(), x, y);
-            // If evaluation resulted in an error, set the cell type accordingly
-            if (result.equals(Ex2Utils.ERR_CYCLE)) {
-                cell.setType(Ex2Utils.ERR_CYCLE_FORM);
-            } else if (result.equals(Ex2Utils.ERR_FORM)) {
-                cell.setType(Ex2Utils.ERR_FORM_FORMAT);
-            }
-            return result;
-        }
-
-        return cell.getData();
-    }
-
-    private String evaluateFormula(String formula) {
-        if (!formula.startsWith("=")) {
-            return formula;
-        }
-
-        formula = formula.substring(1); // Remove '='
-
-        try {
-            // Handle cell references
-            if (formula.matches("[A-Za-z][0-9]+")) {
-                Cell referencedCell = get(formula);
-                if (referencedCell != null) {
-                    return referencedCell.toString();
-                }
-                return Ex2Utils.ERR_FORM;
-            }
-
-            // Replace cell references with their values
-            StringBuilder processedFormula = new StringBuilder("=");
-            StringBuilder currentToken = new StringBuilder();
-
-            for (int i = 0; i < formula.length(); i++) {
-                char c = formula.charAt(i);
-
-                if (Character.isLetter(c) && i + 1 < formula.length() && Character.isDigit(formula.charAt(i + 1))) {
-                    // Found potential cell reference
-                    currentToken.append(c);
-                    while (i + 1 < formula.length() && Character.isDigit(formula.charAt(i + 1))) {
-                        currentToken.append(formula.charAt(++i));
-                    }
-
-                    String cellRef = currentToken.toString();
-                    Cell referencedCell = get(cellRef);
-                    if (referencedCell != null) {
-                        processedFormula.append(referencedCell.toString());
-                    } else {
-                        return Ex2Utils.ERR_FORM;
-                    }
-                    currentToken.setLength(0);
-                } else {
-                    processedFormula.append(c);
-                }
-            }
-
-            return String.valueOf(SCell.computeForm(processedFormula.toString()));
-        } catch (Exception e) {
-            return Ex2Utils.ERR_FORM;
+        if (cell instanceof SCell && cell.getType() != Ex2Utils.ERR_CYCLE_FORM) {
+            // Cycles are only detected by recalc, re-evaluating such a cell on its own would hide them
+            ((SCell) cell).evaluate();
         }
+        return value(x, y);
     }
 
 }
@@ -0,0 +1,923 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongFunction;
+
+/**
+ * A formula (e.g., "=A1*(2+B3)") compiled once into a postfix instruction array:
+ * REF 0, CONST 2, REF 1, ADD, MUL, with the reference table {0, 1, 1, 3} (A1 and B3).
+ * The reference table holds every referenced cell once, as x,y pairs: the instructions refer to its entries,
+ * and the sheets read it to track the dependencies, so a reference is only parsed when the formula is compiled.
+ * Evaluating a compiled formula walks the instructions over a primitive stack,
+ * so no Strings are created (or parsed) when the sheet is recomputed.
+ *
+ * The aggregate functions SUM, AVG, MIN, MAX and COUNT take ranges (e.g., "A1:B500") and expressions,
+ * separated by commas: "=SUM(A1:A500,B2*2)". A function keeps its running sum, count, min and max on the stack,
+ * a range is folded into them by a single loop over its cells (empty and text cells are skipped, as in COUNT),
+ * or by the range index of an Ex2Sheet (see Ex2Sheet.setRangeIndex). Only the cells of a range inside the sheet are read.
+ * A range is kept as its corners (see getRanges), not in the reference table, so its size is not limited
+ * and a sheet tracks it as a single dependency (see RangeNodes).
+ *
+ * A comparison (<, >, ==, !=, <=, >=) is 1 if it holds and 0 otherwise, and IF(condition, a, b) is a if the condition
+ * is not 0 and b otherwise. IF is compiled into jumps, so the untaken branch is never evaluated (nor are the cells it
+ * refers to, "=IF(A1==0,0,1/A1)" is valid for A1=0). The references that only appear in branches are tracked by every
+ * eval(Sheet), see isLive.
+ */
+public class Formula {
+    private static final int CONST = 0, REF = 1, ADD = 2, SUB = 3, MUL = 4, DIV = 5, NEG = 6,
+            AGG_BEGIN = 7, AGG_VALUE = 8, RANGE = 9, AGG_END = 10,
+            LT = 11, GT = 12, EQ = 13, NE = 14, LE = 15, GE = 16, JUMP_IF_FALSE = 17, JUMP = 18, BRANCH_REF = 19;
+    private static final String[] COMPARISONS = {"<", ">", "==", "!=", "<=", ">="};  // as Ex2Utils.B_OPS, in opcode order
+    private static final String[] FUNCTIONS = {"SUM", "AVG", "MIN", "MAX", "COUNT"};
+    private static final int SUM = 0, AVG = 1, MIN = 2, MAX = 3, COUNT = 4;
+
+    private final int[] code;       // the instructions, CONST is followed by an index in consts, REF by an index in refs
+    private final double[] consts;
+    private final double[] stack;
+    private final int[] refs;       // the reference table: x0, y0, x1, y1...
+    private final int[] ranges;     // the ranges, RANGE is followed by an index in them: x0, y0, x1, y1 (inclusive) of each
+    private final int[] branchRefs; // the entries of refs only read inside IF branches, BRANCH_REF is followed by an index in them
+    private final int[] readIn;     // for every entry of branchRefs, the last evaluation (see evaluations) that read it
+    private int evaluations;        // the number of eval(Sheet) calls
+    private int error;              // the error type of the last evaluation, 0 if it was valid
+
+    private Formula(int[] code, double[] consts, int maxStack, int[] refs, int[] ranges, int[] branchRefs) {
+        this.code = code;
+        this.consts = consts;
+        this.stack = new double[Math.max(1, maxStack)];
+        this.refs = refs;
+        this.ranges = ranges;
+        this.branchRefs = branchRefs;
+        this.readIn = new int[branchRefs.length];
+    }
+
+    /**
+     * Compiles a formula String.
+     * @param form a String starting with "=" (e.g., "=A1+2", lower case references are allowed).
+     * @return the compiled formula, or null if form is not a valid formula.
+     */
+    public static Formula compile(String form) {
+        if (form == null || !form.startsWith("=")) {
+            return null;
+        }
+        Compiler c = new Compiler(form);
+        if (!c.comparison() || c.pos != form.length()) {
+            return null;
+        }
+        int[] branchRefs = c.branchRefs();  // before code(), it changes their instructions
+        return new Formula(c.code(), c.consts(), c.maxDepth, c.refs(), c.ranges(), branchRefs);
+    }
+
+    /**
+     * Writes the compiled instructions of this formula (for Ex2Sheet.saveSnapshot).
+     */
+    void writeTo(SnapshotWriter out) throws IOException {
+        out.writeInts(code);
+        out.writeDoubles(consts);
+        out.writeVarInt(stack.length);
+        out.writeInts(refs);
+        out.writeInts(ranges);
+        out.writeInts(branchRefs);
+    }
+
+    /**
+     * @return a formula written by writeTo, without compiling it again.
+     */
+    static Formula readFrom(SnapshotReader in) throws IOException {
+        int[] code = in.readInts();
+        double[] consts = in.readDoubles();
+        int maxStack = in.readVarInt();
+        return new Formula(code, consts, maxStack, in.readInts(), in.readInts(), in.readInts());
+    }
+
+    /**
+     * @return the reference table: the cells this formula refers to as x,y pairs {x0, y0, x1, y1...},
+     * each cell once (in order of first appearance). The returned array is shared and must not be changed.
+     */
+    public int[] getReferences() {
+        return refs;
+    }
+
+    /**
+     * @return the number of cells this formula refers to (not counting the cells of its ranges).
+     */
+    public int getReferenceCount() {
+        return refs.length / 2;
+    }
+
+    /**
+     * @return the ranges this formula refers to as x0,y0,x1,y1 quads (inclusive, x0 <= x1 and y0 <= y1),
+     * in order of appearance. The returned array is shared and must not be changed.
+     */
+    public int[] getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return a cursor over all the cells this formula refers to inside a width x height sheet.
+     */
+    public References references(int width, int height) {
+        return new References(refs, ranges, width, height);
+    }
+
+    /**
+     * @return false iff the last eval(Sheet) did not read the x,y cell because it only appears in the untaken
+     * branches of IF, so a change of it can not change the value of this formula (as long as its other references
+     * do not change). True for any other cell, and before the first evaluation.
+     */
+    public boolean isLive(int x, int y) {
+        if (RangeNodes.contains(ranges, x, y)) {
+            return true;  // the cells of a range are always read
+        }
+        for (int i = 0; i < branchRefs.length; i++) {
+            int ref = 2 * branchRefs[i];
+            if (refs[ref] == x && refs[ref + 1] == y) {
+                return readIn[i] == evaluations;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the error type of the last evaluation (Ex2Utils.ERR_FORM_FORMAT or ERR_CYCLE_FORM), 0 if it was valid.
+     */
+    public int getError() {
+        return error;
+    }
+
+    /**
+     * Evaluates this formula.
+     * @param sheet the sheet the references are resolved in (may be null for a formula without references).
+     * @return the value of the formula, NaN in case of an error (see getError()).
+     */
+    public double eval(Sheet sheet) {
+        error = 0;
+        evaluations++;
+        return run(sheet, null, stack);
+    }
+
+    /**
+     * Evaluates this formula with the given evaluation state (instead of the state of this formula),
+     * so the same formula can be evaluated by several threads at once.
+     * @return the value of the formula, NaN in case of an error (see Evaluation.getError()).
+     */
+    public double eval(Evaluation evaluation) {
+        evaluation.error = 0;
+        return run(null, evaluation, new double[stack.length]);
+    }
+
+    private double run(Sheet sheet, Evaluation evaluation, double[] stack) {
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case CONST:
+                    stack[sp++] = consts[code[++pc]];
+                    break;
+                case REF:
+                case BRANCH_REF:
+                    int ref;
+                    if (code[pc] == BRANCH_REF) {
+                        int branchRef = code[++pc];
+                        if (evaluation == null) {
+                            readIn[branchRef] = evaluations;  // only eval(Sheet) tracks the read references
+                        }
+                        ref = 2 * branchRefs[branchRef];
+                    } else {
+                        ref = 2 * code[++pc];
+                    }
+                    double v = evaluation == null ? valueOf(sheet, refs[ref], refs[ref + 1])
+                            : evaluation.valueOf(refs[ref], refs[ref + 1]);
+                    if ((evaluation == null ? error : evaluation.error) != 0) {
+                        return Double.NaN;
+                    }
+                    stack[sp++] = v;
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    if (stack[sp] == 0) {   // Division by zero
+                        setError(evaluation, Ex2Utils.ERR_FORM_FORMAT);
+                        return Double.NaN;
+                    }
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case LT: case GT: case EQ: case NE: case LE: case GE:
+                    sp--;
+                    stack[sp - 1] = compare(code[pc], stack[sp - 1], stack[sp]) ? 1 : 0;
+                    break;
+                case JUMP_IF_FALSE:
+                    int target = code[++pc];
+                    if (stack[--sp] == 0) {
+                        pc = target - 1;  // the loop moves to the target
+                    }
+                    break;
+                case JUMP:
+                    pc = code[pc + 1] - 1;
+                    break;
+                case AGG_BEGIN:
+                    // sum, count, min, max
+                    stack[sp++] = 0;
+                    stack[sp++] = 0;
+                    stack[sp++] = Double.POSITIVE_INFINITY;
+                    stack[sp++] = Double.NEGATIVE_INFINITY;
+                    break;
+                case AGG_VALUE:
+                    sp--;
+                    fold(stack, sp, stack[sp]);
+                    break;
+                case RANGE:
+                    int r = 4 * code[++pc];
+                    // The cells outside of the sheet are empty, only the part of the range inside of it is read
+                    int x0 = ranges[r], y0 = ranges[r + 1];
+                    int x1 = Math.min(ranges[r + 2], (evaluation == null ? (sheet == null ? 0 : sheet.width()) : evaluation.width()) - 1);
+                    int y1 = Math.min(ranges[r + 3], (evaluation == null ? (sheet == null ? 0 : sheet.height()) : evaluation.height()) - 1);
+                    if (sheet instanceof Ex2Sheet && ((Ex2Sheet) sheet).foldRange(x0, y0, x1, y1, stack, sp - 4)) {
+                        break;  // folded by the range index of the sheet
+                    }
+                    for (int x = x0; x <= x1; x++) {
+                        for (int y = y0; y <= y1; y++) {
+                            if (evaluation == null ? isBlank(sheet, x, y) : evaluation.isBlank(x, y)) {
+                                continue;
+                            }
+                            double cell = evaluation == null ? valueOf(sheet, x, y) : evaluation.valueOf(x, y);
+                            if ((evaluation == null ? error : evaluation.error) != 0) {
+                                return Double.NaN;
+                            }
+                            fold(stack, sp, cell);
+                        }
+                    }
+                    break;
+                case AGG_END:
+                    int function = code[++pc];
+                    sp -= 4;
+                    double count = stack[sp + 1];
+                    if (function == AVG && count == 0) {   // The average of nothing
+                        setError(evaluation, Ex2Utils.ERR_FORM_FORMAT);
+                        return Double.NaN;
+                    }
+                    switch (function) {
+                        case AVG: stack[sp] /= count; break;
+                        case MIN: stack[sp] = count == 0 ? 0 : stack[sp + 2]; break;
+                        case MAX: stack[sp] = count == 0 ? 0 : stack[sp + 3]; break;
+                        case COUNT: stack[sp] = count; break;
+                        default: break;  // SUM, already in place
+                    }
+                    sp++;
+                    break;
+            }
+        }
+        return stack[0];
+    }
+
+    private static boolean compare(int op, double a, double b) {
+        switch (op) {
+            case LT: return a < b;
+            case GT: return a > b;
+            case EQ: return a == b;
+            case NE: return a != b;
+            case LE: return a <= b;
+            default: return a >= b;
+        }
+    }
+
+    /**
+     * Adds a value to the sum, count, min and max of the function on the top of the stack (below sp).
+     */
+    private static void fold(double[] stack, int sp, double v) {
+        stack[sp - 4] += v;
+        stack[sp - 3]++;
+        stack[sp - 2] = Math.min(stack[sp - 2], v);
+        stack[sp - 1] = Math.max(stack[sp - 1], v);
+    }
+
+    private void setError(Evaluation evaluation, int type) {
+        if (evaluation == null) {
+            error = type;
+        } else {
+            evaluation.error = type;
+        }
+    }
+
+    /**
+     * The state of a single evaluation with eval(Evaluation): resolves the referenced cells and holds the error.
+     */
+    public abstract static class Evaluation {
+        protected int error;
+        private CellMap<Result> results;  // the cells evaluated by evaluate, created by its first call
+
+        /**
+         * @return the value of the x,y cell, if it has no numeric value sets error (to Ex2Utils.ERR_FORM_FORMAT
+         * or ERR_CYCLE_FORM) and returns NaN.
+         */
+        protected abstract double valueOf(int x, int y);
+
+        /**
+         * @return true iff the x,y cell is empty or a text (the cells of a range the functions skip).
+         */
+        protected abstract boolean isBlank(int x, int y);
+
+        /**
+         * @return the width of the sheet, the cells of a range beyond it are empty (and not read).
+         */
+        protected abstract int width();
+
+        /**
+         * @return the height of the sheet, the cells of a range below it are empty (and not read).
+         */
+        protected abstract int height();
+
+        /**
+         * @return the error type of the last evaluation, 0 if it was valid.
+         */
+        public int getError() {
+            return error;
+        }
+
+        /**
+         * @return the formula of the key cell if it is a formula without a cached value, null otherwise.
+         */
+        protected abstract Formula uncached(long key);
+
+        /**
+         * Caches the value of the key formula cell, computed by evaluate.
+         */
+        protected abstract void cache(long key, double value, int error);
+
+        /**
+         * Evaluates the key formula cell (see uncached) and, first, the uncached formulas it refers to (transitively),
+         * in dependency order: an iterative depth first search over the reference tables and the cells of the ranges
+         * (see references), so a chain of formulas of any length takes no Java stack. As in Ex2Sheet, the cycles are found in the reference tables:
+         * a cell in a cycle, or referring to one, is an ERR_CYCLE_FORM even if the IF branch through it is not taken.
+         * Every evaluated cell is cached (a cycle with a NaN value), and read from this evaluation from then on.
+         * @return the value of the cell, error is set to its error.
+         */
+        protected double evaluate(long key) {
+            if (results == null) {
+                results = new CellMap<>();
+            }
+            Result done = results.get(key);
+            Formula formula = done == null ? uncached(key) : null;
+            if (formula == null) {
+                return done != null ? done.read(this) : valueOf(CellEntry.keyX(key), CellEntry.keyY(key));
+            }
+            CellMap<Frame> onPath = new CellMap<>();
+            ArrayDeque<Frame> path = new ArrayDeque<>();
+            Frame top = new Frame(key, formula, width(), height());
+            path.push(top);
+            onPath.put(key, top);
+            while (true) {
+                Frame frame = path.peek();
+                long ref = frame.references.next();
+                if (ref != CellEntry.INVALID) {
+                    int x = CellEntry.keyX(ref), y = CellEntry.keyY(ref);
+                    Result r = results.get(ref);
+                    Formula f = r == null && onPath.get(ref) == null ? uncached(ref) : null;
+                    if (r != null) {
+                        frame.cycle |= r.cycle;
+                    } else if (onPath.get(ref) != null) {
+                        frame.cycle = true;  // a back edge: all the cells of the path from ref are in the cycle
+                    } else if (f != null) {
+                        Frame next = new Frame(ref, f, width(), height());
+                        path.push(next);
+                        onPath.put(ref, next);
+                    } else {
+                        valueOf(x, y);  // not a formula, or cached
+                        frame.cycle |= error == Ex2Utils.ERR_CYCLE_FORM;
+                    }
+                    continue;
+                }
+                path.pop();
+                onPath.remove(frame.key);
+                Result result = new Result(frame.cycle);
+                if (frame.cycle) {
+                    result.value = Double.NaN;
+                    result.error = Ex2Utils.ERR_CYCLE_FORM;
+                } else {
+                    // All the formulas it refers to are evaluated, so reading them does not recurse
+                    result.value = frame.formula.eval(this);
+                    result.error = error;
+                }
+                results.put(frame.key, result);
+                cache(frame.key, result.value, result.error);
+                if (path.isEmpty()) {
+                    return result.read(this);
+                }
+                path.peek().cycle |= frame.cycle;
+            }
+        }
+    }
+
+    /**
+     * A formula cell on the path of Evaluation.evaluate, with the references it has left to visit.
+     */
+    private static final class Frame {
+        final long key;
+        final Formula formula;
+        final References references;
+        boolean cycle;  // in (or referring to) a cycle
+
+        Frame(long key, Formula formula, int width, int height) {
+            this.key = key;
+            this.formula = formula;
+            this.references = formula.references(width, height);
+        }
+    }
+
+    /**
+     * A cursor over the cells a formula refers to inside a width x height sheet: the reference table, then the cells
+     * of the ranges (by columns) clipped to the sheet. A cell is visited once per reference or range it is in.
+     */
+    public static final class References {
+        private final int[] refs, ranges;
+        private final int width, height;
+        private int next;  // the next entry of refs
+        private int range = -4, x, y, y0, x1 = -1, y1 = -1;  // the current range and its next cell
+
+        private References(int[] refs, int[] ranges, int width, int height) {
+            this.refs = refs;
+            this.ranges = ranges;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * @return the key of the next cell (see CellEntry.key), CellEntry.INVALID once all of them were visited.
+         */
+        public long next() {
+            if (next < refs.length) {
+                next += 2;
+                return CellEntry.key(refs[next - 2], refs[next - 1]);
+            }
+            while (x > x1 || y > y1) {  // the current range is done (or empty)
+                range += 4;
+                if (range >= ranges.length) {
+                    return CellEntry.INVALID;
+                }
+                x = ranges[range];
+                y = y0 = ranges[range + 1];
+                x1 = Math.min(ranges[range + 2], width - 1);
+                y1 = Math.min(ranges[range + 3], height - 1);
+            }
+            long ans = CellEntry.key(x, y);
+            if (y == y1) {
+                x++;
+                y = y0;
+            } else {
+                y++;
+            }
+            return ans;
+        }
+    }
+
+    /**
+     * Computes the order of the key cell (see Cell.getOrder) with an iterative depth first search over its references
+     * (see references) in a width x height sheet: 0 if it is not a formula or refers to no cell, else 1 + the max order
+     * of the cells it refers to, Ex2Utils.ERR if any of them is in (or refers to) a cycle.
+     * @param formulas the formula of a cell, null if it is not a (valid) formula.
+     * @param orders the orders of the formulas computed so far (by this search or a previous one),
+     * the orders of the formulas it visits are added.
+     */
+    public static int order(long key, LongFunction<Formula> formulas, int width, int height, Map<Long, Integer> orders) {
+        Formula formula = formulas.apply(key);
+        Integer known = formula == null ? Integer.valueOf(0) : orders.get(key);
+        if (known != null) {
+            return known;
+        }
+        CellMap<Visit> onPath = new CellMap<>();
+        ArrayDeque<Visit> path = new ArrayDeque<>();
+        Visit first = new Visit(key, formula, width, height);
+        path.push(first);
+        onPath.put(key, first);
+        while (true) {
+            Visit visit = path.peek();
+            long ref = visit.references.next();
+            if (ref != CellEntry.INVALID) {
+                Formula f = CellEntry.keyX(ref) < width && CellEntry.keyY(ref) < height ? formulas.apply(ref) : null;
+                Integer o = f == null ? Integer.valueOf(0) : orders.get(ref);
+                if (o == null && onPath.get(ref) != null) {
+                    o = Ex2Utils.ERR;  // a cycle
+                }
+                if (o == null) {
+                    Visit next = new Visit(ref, f, width, height);
+                    path.push(next);
+                    onPath.put(ref, next);
+                } else {
+                    visit.add(o);
+                }
+                continue;
+            }
+            path.pop();
+            onPath.remove(visit.key);
+            orders.put(visit.key, visit.order);
+            if (path.isEmpty()) {
+                return visit.order;
+            }
+            path.peek().add(visit.order);
+        }
+    }
+
+    /**
+     * A formula cell on the path of order, with the order of the references visited so far.
+     */
+    private static final class Visit {
+        final long key;
+        final References references;
+        int order;
+
+        Visit(long key, Formula formula, int width, int height) {
+            this.key = key;
+            this.references = formula.references(width, height);
+            this.order = formula.refs.length > 0 || formula.ranges.length > 0 ? 1 : 0;
+        }
+
+        void add(int o) {
+            order = o == Ex2Utils.ERR || order == Ex2Utils.ERR ? Ex2Utils.ERR : Math.max(order, o + 1);
+        }
+    }
+
+    /**
+     * The value of a cell evaluated by Evaluation.evaluate.
+     */
+    private static final class Result {
+        final boolean cycle;
+        double value;
+        int error;
+
+        Result(boolean cycle) {
+            this.cycle = cycle;
+        }
+
+        double read(Evaluation evaluation) {
+            evaluation.error = error;
+            return value;
+        }
+    }
+
+    private static boolean isBlank(Sheet sheet, int x, int y) {
+        if (sheet instanceof Ex2Sheet) {
+            Ex2Sheet ex2 = (Ex2Sheet) sheet;  // numbers and texts are stored by column, read without a Cell
+            if (!Double.isNaN(ex2.number(x, y))) {
+                return false;
+            }
+            if (ex2.isText(x, y)) {
+                return true;
+            }
+        }
+        Cell cell = sheet == null ? null : sheet.get(x, y);
+        return cell == null || cell.getType() == Ex2Utils.TEXT;
+    }
+
+    /**
+     * Reads the value of a referenced cell, without any shared state (formulas of a level are evaluated in parallel).
+     */
+    private double valueOf(Sheet sheet, int x, int y) {
+        if (sheet instanceof Ex2Sheet) {
+            double number = ((Ex2Sheet) sheet).number(x, y);  // a number cell, read from its column
+            if (!Double.isNaN(number)) {
+                error = 0;
+                return number;
+            }
+        }
+        Cell cell = sheet == null ? null : sheet.get(x, y);
+        if (cell instanceof SCell) {
+            SCell s = (SCell) cell;
+            if (s.isProcessing()) {
+                error = Ex2Utils.ERR_CYCLE_FORM;
+                return 0;
+            }
+            double v = s.getValue();
+            error = s.getValueError();
+            return v;
+        }
+        // Any other Cell only exposes the presented String
+        if (cell != null && (cell.getType() == Ex2Utils.NUMBER || cell.getType() == Ex2Utils.FORM)) {
+            try {
+                return Double.parseDouble(sheet.value(x, y));
+            } catch (NumberFormatException e) {
+                // falls to the error below
+            }
+        }
+        error = cell != null && cell.getType() == Ex2Utils.ERR_CYCLE_FORM ? Ex2Utils.ERR_CYCLE_FORM : Ex2Utils.ERR_FORM_FORMAT;
+        return 0;
+    }
+
+    /**
+     * A recursive descent parser emitting postfix instructions:
+     * comparison := expr (('<'|'>'|'=='|'!='|'<='|'>=') expr)?,
+     * expr := term (('+'|'-') term)*, term := factor (('*'|'/') factor)*,
+     * factor := ('+'|'-') factor | number | cell | '(' comparison ')' | 'IF(' comparison ',' comparison ',' comparison ')'
+     *     | function '(' arg (',' arg)* ')',
+     * arg := cell ':' cell | comparison.
+     * IF is emitted as: condition, JUMP_IF_FALSE else, a, JUMP end, else: b, end:
+     */
+    private static class Compiler {
+        private final String src;
+        private int pos = 1;  // skip the '='
+        private int[] code = new int[16];
+        private int size;
+        private double[] consts = new double[4];
+        private int constSize;
+        private int depth, maxDepth;
+        private int[] refs = new int[8];
+        private int refSize;
+        private final Map<Long, Integer> refIndex = new HashMap<>();  // cell key -> its entry in refs
+        private int[] ranges = new int[4];
+        private int rangeSize;
+        private int branches;  // the number of IF branches around the current position
+        private final Set<Integer> unconditional = new HashSet<>();  // the entries of refs read outside of any branch
+        private final List<Integer> branchRefAt = new ArrayList<>();  // the positions of the references emitted in branches
+
+        Compiler(String src) {
+            this.src = src;
+        }
+
+        boolean comparison() {
+            if (!expr()) return false;
+            int op = -1;
+            for (int i = 0; i < COMPARISONS.length; i++) {
+                if (src.startsWith(COMPARISONS[i], pos) && (op < 0 || COMPARISONS[i].length() > COMPARISONS[op].length())) {
+                    op = i;
+                }
+            }
+            if (op < 0) return true;
+            pos += COMPARISONS[op].length();
+            if (!expr()) return false;
+            emitOp(LT + op);
+            return true;
+        }
+
+        boolean expr() {
+            if (!term()) return false;
+            while (pos < src.length() && (src.charAt(pos) == '+' || src.charAt(pos) == '-')) {
+                int op = src.charAt(pos++) == '+' ? ADD : SUB;
+                if (pos < src.length() && isSign(src.charAt(pos))) return false;
+                if (!term()) return false;
+                emitOp(op);
+            }
+            return true;
+        }
+
+        private boolean term() {
+            if (!factor()) return false;
+            while (pos < src.length() && (src.charAt(pos) == '*' || src.charAt(pos) == '/')) {
+                int op = src.charAt(pos++) == '*' ? MUL : DIV;
+                if (pos < src.length() && isSign(src.charAt(pos))) return false;
+                if (!factor()) return false;
+                emitOp(op);
+            }
+            return true;
+        }
+
+        private boolean factor() {
+            if (pos >= src.length()) return false;
+            char c = src.charAt(pos);
+            if (c == '+' || c == '-') {
+                pos++;
+                // No consecutive operators (e.g., "1++2"), as in SCell.isForm
+                if (pos < src.length() && isSign(src.charAt(pos))) return false;
+                if (!factor()) return false;
+                if (c == '-') emit(NEG);
+                return true;
+            }
+            if (c == '(') {
+                pos++;
+                if (!comparison() || pos >= src.length() || src.charAt(pos) != ')') return false;
+                pos++;
+                return true;
+            }
+            if (isDigit(c)) {
+                return number();
+            }
+            if (isLetter(c)) {
+                int start = pos;
+                while (pos < src.length() && isLetter(src.charAt(pos))) pos++;
+                if (pos < src.length() && src.charAt(pos) == '(') {
+                    return function(src.substring(start, pos).toUpperCase());
+                }
+                pos = start;
+                return cell();
+            }
+            return false;
+        }
+
+        private boolean function(String name) {
+            if (name.equals("IF")) {
+                return condition();
+            }
+            int function = Arrays.asList(FUNCTIONS).indexOf(name);
+            if (function < 0) return false;
+            pos++;  // skip the '('
+            emit(AGG_BEGIN);
+            for (int i = 0; i < 4; i++) push();
+            if (!argument()) return false;
+            while (pos < src.length() && src.charAt(pos) == ',') {
+                pos++;
+                if (!argument()) return false;
+            }
+            if (pos >= src.length() || src.charAt(pos) != ')') return false;
+            pos++;
+            emit(AGG_END);
+            emit(function);
+            depth -= 3;
+            return true;
+        }
+
+        private boolean condition() {
+            pos++;  // skip the '('
+            if (!comparison() || !skip(',')) return false;
+            emit(JUMP_IF_FALSE);
+            int otherwise = size;
+            emit(0);
+            depth--;
+            branches++;
+            if (!comparison() || !skip(',')) return false;
+            emit(JUMP);
+            int end = size;
+            emit(0);
+            depth--;  // only one of the branches is on the stack
+            code[otherwise] = size;
+            if (!comparison() || !skip(')')) return false;
+            code[end] = size;
+            branches--;
+            return true;
+        }
+
+        private boolean skip(char c) {
+            if (pos >= src.length() || src.charAt(pos) != c) return false;
+            pos++;
+            return true;
+        }
+
+        private boolean argument() {
+            int start = pos;
+            long from = name();
+            if (from != CellEntry.INVALID && pos < src.length() && src.charAt(pos) == ':') {
+                pos++;
+                long to = name();
+                if (to == CellEntry.INVALID) return false;
+                int x0 = Math.min(CellEntry.keyX(from), CellEntry.keyX(to)), x1 = Math.max(CellEntry.keyX(from), CellEntry.keyX(to));
+                int y0 = Math.min(CellEntry.keyY(from), CellEntry.keyY(to)), y1 = Math.max(CellEntry.keyY(from), CellEntry.keyY(to));
+                // Kept as its corners, the cells of a range are always considered read (even in a branch, see isLive)
+                if (rangeSize == ranges.length) ranges = Arrays.copyOf(ranges, rangeSize * 2);
+                emit(RANGE);
+                emit(rangeSize / 4);
+                ranges[rangeSize++] = x0;
+                ranges[rangeSize++] = y0;
+                ranges[rangeSize++] = x1;
+                ranges[rangeSize++] = y1;
+                return true;
+            }
+            pos = start;
+            if (!comparison()) return false;
+            emit(AGG_VALUE);
+            depth--;
+            return true;
+        }
+
+        /**
+         * Reads a cell name (letters and then digits).
+         * @return its key, or CellEntry.INVALID.
+         */
+        private long name() {
+            int start = pos;
+            while (pos < src.length() && isLetter(src.charAt(pos))) pos++;
+            while (pos < src.length() && isDigit(src.charAt(pos))) pos++;
+            String name = src.substring(start, pos).toUpperCase();
+            return CellEntry.parse(name, 0, name.length());
+        }
+
+        /**
+         * @return the entry of the given cell in the reference table (added if it is not there yet).
+         */
+        private int reference(long key) {
+            Integer index = refIndex.get(key);
+            if (index == null) {
+                index = refSize / 2;
+                refIndex.put(key, index);
+                if (refSize == refs.length) refs = Arrays.copyOf(refs, refSize * 2);
+                refs[refSize++] = CellEntry.keyX(key);
+                refs[refSize++] = CellEntry.keyY(key);
+            }
+            return index;
+        }
+
+        private boolean number() {
+            int start = pos;
+            while (pos < src.length() && isDigit(src.charAt(pos))) pos++;
+            if (pos < src.length() && src.charAt(pos) == '.') {
+                pos++;
+                int fraction = pos;
+                while (pos < src.length() && isDigit(src.charAt(pos))) pos++;
+                if (pos == fraction) return false;
+            }
+            if (constSize == consts.length) consts = Arrays.copyOf(consts, constSize * 2);
+            consts[constSize] = Double.parseDouble(src.substring(start, pos));
+            emit(CONST);
+            emit(constSize++);
+            push();
+            return true;
+        }
+
+        private boolean cell() {
+            long key = name();
+            if (key == CellEntry.INVALID) return false;
+            int ref = reference(key);
+            if (branches > 0) {
+                branchRefAt.add(size);
+            } else {
+                unconditional.add(ref);
+            }
+            emit(REF);
+            emit(ref);
+            push();
+            return true;
+        }
+
+        private void emitOp(int op) {
+            emit(op);
+            depth--;
+        }
+
+        private void push() {
+            depth++;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void emit(int v) {
+            if (size == code.length) code = Arrays.copyOf(code, size * 2);
+            code[size++] = v;
+        }
+
+        /**
+         * Only ASCII digits: Character.isDigit accepts other scripts (e.g., '١'), which Double.parseDouble rejects.
+         */
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private static boolean isLetter(char c) {
+            return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+        }
+
+        private static boolean isSign(char c) {
+            return c == '+' || c == '-' || c == '*' || c == '/';
+        }
+
+        int[] code() {
+            return Arrays.copyOf(code, size);
+        }
+
+        /**
+         * Turns the REF instructions of the references only read in branches into BRANCH_REF.
+         * @return the entries of refs of these references.
+         */
+        int[] branchRefs() {
+            Map<Integer, Integer> index = new HashMap<>();  // entry of refs -> its index in the returned array
+            for (int at : branchRefAt) {
+                int ref = code[at + 1];
+                if (!unconditional.contains(ref)) {
+                    index.putIfAbsent(ref, index.size());
+                    code[at] = BRANCH_REF;
+                    code[at + 1] = index.get(ref);
+                }
+            }
+            int[] ans = new int[index.size()];
+            for (Map.Entry<Integer, Integer> e : index.entrySet()) {
+                ans[e.getValue()] = e.getKey();
+            }
+            return ans;
+        }
+
+        int[] refs() {
+            return Arrays.copyOf(refs, refSize);
+        }
+
+        int[] ranges() {
+            return Arrays.copyOf(ranges, rangeSize);
+        }
+
+        double[] consts() {
+            return Arrays.copyOf(consts, constSize);
+        }
+    }
+}
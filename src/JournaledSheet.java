@@ -0,0 +1,356 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A SpreadSheet persisted in a directory as it is edited: every set is appended to a journal (see SheetJournal)
+ * before it is applied, so persisting an edit costs the edit rather than a save of the whole sheet.
+ * On open, the last snapshot of the directory (see Ex2Sheet.saveSnapshot) is loaded and the journals written
+ * after it are replayed on top of it, so a crash only loses the edits the Sync policy did not force yet.
+ *
+ * The directory holds generations: "journal.N" is the N-th journal, and "snapshot.N" is the sheet with all the
+ * journals up to N applied. Compaction seals the current journal (the edits go on in a new one) and, on a background
+ * thread, replays the sealed journals over the last snapshot into a new snapshot, then deletes what it replaces.
+ * The compaction never reads the edited sheet, only the files, and a snapshot is only renamed into place once complete,
+ * so a crash at any point of it leaves a directory that opens to the same sheet.
+ *
+ * The edits go through set, beginBatch/commit (a batch is a single group commit) and load, changing a cell
+ * returned by get is not journaled. Thread safe as VersionedSheet: the methods are synchronized.
+ */
+public class JournaledSheet implements Sheet, Closeable {
+    private static final String SNAPSHOT = "snapshot.", JOURNAL = "journal.", TEMP = ".tmp";
+
+    private final Path directory;
+    private final SheetJournal.Sync sync;
+    private final long intervalMillis;
+    private final Ex2Sheet sheet;
+    private final int initialWidth, initialHeight;  // the size of the sheet without a snapshot
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "JournaledSheet compaction");
+        t.setDaemon(true);
+        return t;
+    });
+    private SheetJournal journal;
+    private long generation;  // of the current journal
+    private long journaled;   // the bytes of the journals since the last compaction
+    private long compactionThreshold;  // compact once journaled exceeds it, 0 for never
+    private volatile long snapshotGeneration;  // of the last snapshot, -1 if none
+    private boolean batch;
+
+    /**
+     * Opens (or creates) the sheet persisted in the given directory.
+     * @param x the width of a new sheet (a persisted sheet has its own size).
+     * @param y the height of a new sheet.
+     * @param intervalMillis the interval of the INTERVAL policy (ignored by the others).
+     * @throws IOException if the directory can not be read or written, or holds a corrupted snapshot.
+     */
+    public JournaledSheet(String directory, int x, int y, SheetJournal.Sync sync, long intervalMillis) throws IOException {
+        this.directory = Paths.get(directory);
+        this.sync = sync;
+        this.intervalMillis = intervalMillis;
+        initialWidth = x;
+        initialHeight = y;
+        Files.createDirectories(this.directory);
+        sheet = new Ex2Sheet(x, y);
+        recover();
+        journal = new SheetJournal(file(JOURNAL, generation), sync, intervalMillis);
+    }
+
+    public JournaledSheet(String directory) throws IOException {
+        this(directory, Ex2Utils.WIDTH, Ex2Utils.HEIGHT, SheetJournal.Sync.COMMIT, 0);
+    }
+
+    /**
+     * Loads the last snapshot, replays the journals after it, and removes what an interrupted compaction left.
+     */
+    private void recover() throws IOException {
+        long lastSnapshot = -1, lastJournal = -1;
+        List<Long> journals = new ArrayList<>();
+        for (String name : list()) {
+            if (name.endsWith(TEMP)) {
+                Files.delete(this.directory.resolve(name));  // an incomplete snapshot
+            } else if (name.startsWith(SNAPSHOT)) {
+                lastSnapshot = Math.max(lastSnapshot, generationOf(name, SNAPSHOT));
+            } else if (name.startsWith(JOURNAL)) {
+                journals.add(generationOf(name, JOURNAL));
+                lastJournal = Math.max(lastJournal, generationOf(name, JOURNAL));
+            }
+        }
+        deleteBefore(lastSnapshot);
+        if (lastSnapshot >= 0) {
+            sheet.loadSnapshot(file(SNAPSHOT, lastSnapshot));
+        }
+        Collections.sort(journals);
+        sheet.beginBatch();
+        try {
+            for (long g : journals) {
+                if (g > lastSnapshot) {
+                    if (SheetJournal.replay(file(JOURNAL, g), sheet::set) == 0) {
+                        Files.delete(directory.resolve(JOURNAL + g));  // nothing to keep
+                    } else {
+                        journaled += new File(file(JOURNAL, g)).length();
+                    }
+                }
+            }
+        } finally {
+            sheet.commit();
+        }
+        snapshotGeneration = lastSnapshot;
+        generation = Math.max(lastSnapshot, lastJournal) + 1;
+    }
+
+    /**
+     * Compacts in the background whenever the journals written since the last compaction exceed the given size.
+     * @param bytes the size, 0 (the default) to only compact on compact().
+     */
+    public synchronized void setCompactionThreshold(long bytes) {
+        compactionThreshold = bytes;
+    }
+
+    /**
+     * Seals the current journal and replaces it (and the journals and snapshot before it) by a new snapshot
+     * on a background thread, the edits go on meanwhile. Compactions run one at a time, in order.
+     * @return the completion of the compaction.
+     */
+    public synchronized Future<?> compact() {
+        long sealed = generation;
+        try {
+            rollJournal();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compactor.submit(() -> {
+            Ex2Sheet compacted = new Ex2Sheet(initialWidth, initialHeight);
+            long base = snapshotGeneration;
+            if (base >= 0) {
+                compacted.loadSnapshot(file(SNAPSHOT, base));
+            }
+            compacted.beginBatch();
+            try {
+                for (long g = base + 1; g <= sealed; g++) {
+                    if (new File(file(JOURNAL, g)).exists()) {
+                        SheetJournal.replay(file(JOURNAL, g), compacted::set);
+                    }
+                }
+            } finally {
+                compacted.commit();
+            }
+            writeSnapshot(compacted, sealed);
+            snapshotGeneration = sealed;
+            deleteBefore(sealed);
+            return null;
+        });
+    }
+
+    /**
+     * Closes the current journal (committing and forcing it) and starts the next one.
+     */
+    private void rollJournal() throws IOException {
+        journal.close();
+        generation++;
+        journaled = 0;
+        journal = new SheetJournal(file(JOURNAL, generation), sync, intervalMillis);
+    }
+
+    /**
+     * Writes a snapshot of the given generation, through a temporary file renamed once it is forced to the disk.
+     */
+    private void writeSnapshot(Ex2Sheet s, long g) throws IOException {
+        Path temp = Paths.get(file(SNAPSHOT, g) + TEMP);
+        s.saveSnapshot(temp.toString());
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, Paths.get(file(SNAPSHOT, g)), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the snapshots before the given generation and the journals up to it (included in its snapshot).
+     */
+    private void deleteBefore(long g) throws IOException {
+        for (String name : list()) {
+            if ((name.startsWith(SNAPSHOT) && !name.endsWith(TEMP) && generationOf(name, SNAPSHOT) < g)
+                    || (name.startsWith(JOURNAL) && generationOf(name, JOURNAL) <= g)) {
+                Files.deleteIfExists(directory.resolve(name));
+            }
+        }
+    }
+
+    private String[] list() {
+        String[] ans = directory.toFile().list((d, name) -> name.startsWith(SNAPSHOT) || name.startsWith(JOURNAL));
+        return ans == null ? new String[0] : ans;
+    }
+
+    private static long generationOf(String name, String prefix) {
+        int end = name.endsWith(TEMP) ? name.length() - TEMP.length() : name.length();
+        try {
+            return Long.parseLong(name.substring(prefix.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;  // not a file of this sheet
+        }
+    }
+
+    private String file(String prefix, long g) {
+        return directory.resolve(prefix + g).toString();
+    }
+
+    /**
+     * Journals and applies the edit, it is committed (see SheetJournal.commit) unless in a batch.
+     */
+    @Override
+    public synchronized void set(int x, int y, String c) {
+        if (!CellEntry.isAddressable(x, y)) {
+            return;
+        }
+        try {
+            journal.append(x, y, c);
+            if (!batch) {
+                journal.commit();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sheet.set(x, y, c);
+        if (!batch) {
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Starts a batch of edits (see Ex2Sheet.beginBatch), journaled by commit() as a single group commit.
+     */
+    public synchronized void beginBatch() {
+        batch = true;
+        sheet.beginBatch();
+    }
+
+    /**
+     * Commits the journal records of the batch at once, then evaluates the batch (see Ex2Sheet.commit).
+     */
+    public synchronized void commit() {
+        batch = false;
+        try {
+            journal.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            sheet.commit();
+        }
+        compactIfNeeded();
+    }
+
+    private void compactIfNeeded() {
+        if (compactionThreshold > 0 && journaled + journal.size() > compactionThreshold) {
+            compact();
+        }
+    }
+
+    /**
+     * Loads a text file (see Sheet.load) and persists it as a new snapshot, replacing everything before it.
+     */
+    @Override
+    public synchronized void load(String fileName) throws IOException {
+        sheet.load(fileName);
+        rollJournal();
+        long g = generation - 1;
+        // The new snapshot is written after the running compactions, so none of them replaces it
+        try {
+            compactor.submit(() -> {
+                writeSnapshot(sheet, g);
+                snapshotGeneration = g;
+                deleteBefore(g);
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving the loaded sheet", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Waits for the running compactions, then commits and closes the journal.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        compactor.shutdown();
+        try {
+            while (!compactor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // waiting for the compactions
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Override
+    public synchronized void eval() {
+        sheet.eval();
+    }
+
+    @Override
+    public synchronized boolean isIn(int x, int y) {
+        return sheet.isIn(x, y);
+    }
+
+    @Override
+    public synchronized int width() {
+        return sheet.width();
+    }
+
+    @Override
+    public synchronized int height() {
+        return sheet.height();
+    }
+
+    @Override
+    public synchronized Cell get(int x, int y) {
+        return sheet.get(x, y);
+    }
+
+    @Override
+    public synchronized Cell get(String entry) {
+        return sheet.get(entry);
+    }
+
+    @Override
+    public synchronized String value(int x, int y) {
+        return sheet.value(x, y);
+    }
+
+    @Override
+    public synchronized String eval(int x, int y) {
+        return sheet.eval(x, y);
+    }
+
+    @Override
+    public synchronized int[][] depth() {
+        return sheet.depth();
+    }
+
+    /**
+     * Saves the sheet in the text format (see Sheet.save), the persisted state is kept by the directory.
+     */
+    @Override
+    public synchronized void save(String fileName) throws IOException {
+        sheet.save(fileName);
+    }
+}
@@ -0,0 +1,183 @@
+import java.util.Arrays;
+
+/**
+ * The number cells of a sheet, stored by columns as primitive doubles instead of a Cell object (and a String) each.
+ * Every column is split into chunks of CHUNK rows, a chunk holds the values of its rows and a bit per row for the
+ * rows that hold a number, so a number takes about 8 bytes (instead of an SCell, its String and a map entry)
+ * and the numbers of a column are read in order from a single array.
+ *
+ * Only the canonical text of a number is stored this way (e.g., "3" or "2.5", the text is restored from the value),
+ * any other number text (e.g., "3.50", "1e3", "NaN") is left to an SCell, so getData is always the text that was set.
+ */
+public class NumberColumns {
+    private static final int CHUNK_BITS = 10, CHUNK = 1 << CHUNK_BITS;  // rows per chunk
+    private static final int INTEGRAL = 1, DECIMAL = 2;  // the kinds of canonical number texts, see kindOf
+
+    private Chunk[][] columns = new Chunk[0][];  // [x][y / CHUNK], null for a column or a chunk without numbers
+    private int size;
+
+    /**
+     * Stores the number of the x,y cell if text is the canonical text of a number, otherwise removes the x,y number.
+     * @return true iff the number was stored (x and y must be addressable, see CellEntry.isAddressable).
+     */
+    public boolean put(int x, int y, String text) {
+        int kind = kindOf(text);
+        if (kind == 0) {
+            remove(x, y);
+            return false;
+        }
+        put(x, y, Double.parseDouble(text), kind == INTEGRAL);
+        return true;
+    }
+
+    /**
+     * Stores the number of the x,y cell with its text (see text): the text of a long if integral,
+     * otherwise the text of a double.
+     */
+    void put(int x, int y, double value, boolean integral) {
+        if (x >= columns.length) {
+            columns = Arrays.copyOf(columns, (int) Math.min(Math.max(x + 1L, 2L * columns.length), Integer.MAX_VALUE));
+        }
+        int c = y >>> CHUNK_BITS;
+        if (columns[x] == null || c >= columns[x].length) {
+            columns[x] = Arrays.copyOf(columns[x] == null ? new Chunk[0] : columns[x], c + 1);
+        }
+        Chunk chunk = columns[x][c];
+        if (chunk == null) {
+            chunk = columns[x][c] = new Chunk();
+        }
+        int i = y & (CHUNK - 1);
+        long bit = 1L << i;
+        if ((chunk.present[i >> 6] & bit) == 0) {
+            chunk.present[i >> 6] |= bit;
+            chunk.size++;
+            size++;
+        }
+        if (integral) {
+            chunk.integral[i >> 6] |= bit;
+        } else {
+            chunk.integral[i >> 6] &= ~bit;
+        }
+        chunk.values[i] = value;
+    }
+
+    /**
+     * @return INTEGRAL if text is the text of a long (as Long.toString, e.g., "-12"), DECIMAL if it is
+     * the text of a double (as Double.toString, e.g., "2.5"), 0 for any other text.
+     */
+    private static int kindOf(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        char c = text.charAt(0);
+        if (c != '-' && (c < '0' || c > '9')) {
+            return 0;  // not a number (or not a canonical one), without the cost of an exception
+        }
+        double v;
+        try {
+            v = Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        if (v == Math.rint(v) && Math.abs(v) < 1L << 53 && Long.toString((long) v).equals(text)) {
+            return INTEGRAL;
+        }
+        return Double.toString(v).equals(text) ? DECIMAL : 0;
+    }
+
+    private Chunk chunk(int x, int y) {
+        if (x < 0 || y < 0 || x >= columns.length || columns[x] == null) {
+            return null;
+        }
+        int c = y >>> CHUNK_BITS;
+        return c < columns[x].length ? columns[x][c] : null;
+    }
+
+    public boolean contains(int x, int y) {
+        Chunk chunk = chunk(x, y);
+        int i = y & (CHUNK - 1);
+        return chunk != null && (chunk.present[i >> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * @return the number of the x,y cell, NaN if it is not stored here (a stored number is never NaN).
+     */
+    public double get(int x, int y) {
+        Chunk chunk = chunk(x, y);
+        int i = y & (CHUNK - 1);
+        return chunk != null && (chunk.present[i >> 6] & (1L << i)) != 0 ? chunk.values[i] : Double.NaN;
+    }
+
+    /**
+     * @return the text of the x,y number (the same text it was stored with), null if it is not stored here.
+     */
+    public String text(int x, int y) {
+        Chunk chunk = chunk(x, y);
+        int i = y & (CHUNK - 1);
+        if (chunk == null || (chunk.present[i >> 6] & (1L << i)) == 0) {
+            return null;
+        }
+        double v = chunk.values[i];
+        return (chunk.integral[i >> 6] & (1L << i)) != 0 ? Long.toString((long) v) : Double.toString(v);
+    }
+
+    /**
+     * @return true iff the text of the x,y number is the text of a long (e.g., "3" rather than "3.0").
+     */
+    boolean isIntegral(int x, int y) {
+        Chunk chunk = chunk(x, y);
+        int i = y & (CHUNK - 1);
+        return chunk != null && (chunk.integral[i >> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * Removes the x,y number (if any), an empty chunk is released.
+     */
+    public void remove(int x, int y) {
+        Chunk chunk = chunk(x, y);
+        int i = y & (CHUNK - 1);
+        if (chunk == null || (chunk.present[i >> 6] & (1L << i)) == 0) {
+            return;
+        }
+        chunk.present[i >> 6] &= ~(1L << i);
+        size--;
+        if (--chunk.size == 0) {
+            columns[x][y >>> CHUNK_BITS] = null;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        columns = new Chunk[0][];
+        size = 0;
+    }
+
+    /**
+     * @return the packed x,y keys (see CellEntry.key) of all the stored numbers, in x,y order.
+     */
+    public long[] keys() {
+        long[] ans = new long[size];
+        int n = 0;
+        for (int x = 0; x < columns.length; x++) {
+            for (int c = 0; columns[x] != null && c < columns[x].length; c++) {
+                Chunk chunk = columns[x][c];
+                for (int w = 0; chunk != null && w < chunk.present.length; w++) {
+                    for (long bits = chunk.present[w]; bits != 0; bits &= bits - 1) {
+                        ans[n++] = CellEntry.key(x, (c << CHUNK_BITS) + (w << 6) + Long.numberOfTrailingZeros(bits));
+                    }
+                }
+            }
+        }
+        return ans;
+    }
+
+    private static final class Chunk {
+        final double[] values = new double[CHUNK];
+        final long[] present = new long[CHUNK / 64];   // a bit per row that holds a number
+        final long[] integral = new long[CHUNK / 64];  // a bit per row whose text is a long ("3" rather than "3.0")
+        int size;
+    }
+}
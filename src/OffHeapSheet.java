@@ -0,0 +1,441 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A SpreadSheet whose cells are stored off the Java heap (see CellArena), for sheets of hundreds of millions of cells:
+ * neither the heap nor the time of a full GC grows with the number of cells. The only objects are the views
+ * returned by get, a bounded cache of compiled formulas and the state of a running evaluation.
+ *
+ * As in ConcurrentSheet, the formulas are evaluated on demand (see Formula.Evaluation.evaluate),
+ * the value of a formula is cached in its record and reused until a cell it (transitively) depends on is set:
+ * the dependents of every cell are stored off the heap as well (see EdgeArena), a range as a single edge
+ * from its node (see RangeNodes), so setting a cell only drops the cached values of its dependents (see invalidate).
+ * Not thread safe. The direct buffers are limited by -XX:MaxDirectMemorySize (by default, the maximal heap size).
+ */
+public class OffHeapSheet implements Sheet {
+    private static final int FORMULAS = 4096;  // the compiled formulas kept on the heap
+
+    private final CellArena arena = new CellArena();
+    private static final long CACHED = 1;  // the version of a record with a cached value (a new record is 0)
+
+    private final EdgeArena dependents = new EdgeArena();  // cell -> the formulas that refer to it
+    private final EdgeArena rangeDependents = new EdgeArena();  // node -> the formulas with a range in it
+    private final RangeNodes rangeNodes = new RangeNodes();
+    private int width, height;  // only grow (see set)
+    private final Map<Long, Formula> formulas = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Formula> eldest) {
+            return size() > FORMULAS;
+        }
+    };
+
+    public OffHeapSheet(int x, int y) {
+        width = x;
+        height = y;
+    }
+
+    public OffHeapSheet() {
+        this(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
+    }
+
+    /**
+     * @return the number of none empty cells.
+     */
+    public long size() {
+        return arena.size();
+    }
+
+    /**
+     * @return the number of bytes this sheet allocated off the heap.
+     */
+    public long offHeapBytes() {
+        return arena.offHeapBytes() + dependents.offHeapBytes() + rangeDependents.offHeapBytes();
+    }
+
+    @Override
+    public boolean isIn(int xx, int yy) {
+        return xx >= 0 && yy >= 0 && xx < width && yy < height;
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Sets the x,y cell, a cell outside of this sheet grows the sheet to include it (if it is addressable,
+     * see CellEntry.isAddressable, any other cell is ignored).
+     */
+    @Override
+    public void set(int x, int y, String c) {
+        if (!CellEntry.isAddressable(x, y) || ((c == null || c.isEmpty()) && !isIn(x, y))) {
+            return;
+        }
+        width = Math.max(width, x + 1);
+        height = Math.max(height, y + 1);
+        long key = CellEntry.key(x, y);
+        long old = arena.find(key);
+        if (old >= 0 && arena.type(old) == Ex2Utils.FORM) {
+            updateDependencies(key, formula(key, old), false);
+        }
+        formulas.remove(key);
+        if (c == null || c.isEmpty()) {
+            arena.remove(key);
+            invalidate(key);
+            return;
+        }
+        long r = arena.insert(key);
+        int type = Ex2Utils.TEXT;
+        double number = 0;
+        if (c.startsWith("=")) {
+            c = c.toUpperCase();
+            Formula formula = Formula.compile(c);
+            type = formula == null ? Ex2Utils.ERR_FORM_FORMAT : Ex2Utils.FORM;
+            if (formula != null) {
+                formulas.put(key, formula);
+            }
+        } else {
+            try {
+                number = Double.parseDouble(c);
+                type = Ex2Utils.NUMBER;
+            } catch (NumberFormatException e) {
+                // a text cell
+            }
+        }
+        arena.setType(r, type);
+        arena.setValue(r, number, 0, 0);
+        arena.setText(r, c);
+        if (type == Ex2Utils.FORM) {
+            updateDependencies(key, formulas.get(key), true);
+        }
+        invalidate(key);
+    }
+
+    /**
+     * Adds (or removes) the edges from the precedents of the key formula to it: one per reference, one per range.
+     */
+    private void updateDependencies(long key, Formula formula, boolean add) {
+        int[] refs = formula.getReferences(), ranges = formula.getRanges();
+        for (int i = 0; i < refs.length; i += 2) {
+            if (add) {
+                dependents.add(CellEntry.key(refs[i], refs[i + 1]), key);
+            } else {
+                dependents.remove(CellEntry.key(refs[i], refs[i + 1]), key);
+            }
+        }
+        for (int i = 0; i < ranges.length; i += 4) {
+            if (add) {
+                rangeDependents.add(rangeNodes.add(ranges[i], ranges[i + 1], ranges[i + 2], ranges[i + 3]), key);
+            } else {
+                rangeDependents.remove(rangeNodes.remove(ranges[i], ranges[i + 1], ranges[i + 2], ranges[i + 3]), key);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached values of all the formulas that (transitively) depend on the key cell. A cached formula only
+     * depends on cached formulas (an evaluation caches all of them), so the search stops at a formula without a value.
+     */
+    private void invalidate(long key) {
+        long[] stack = dependentsOf(key);
+        int n = stack.length;
+        while (n > 0) {
+            long k = stack[--n];
+            long r = arena.find(k);
+            if (r < 0 || arena.type(r) != Ex2Utils.FORM || arena.version(r) != CACHED) {
+                continue;
+            }
+            arena.setValue(r, Double.NaN, 0, 0);
+            long[] deps = dependentsOf(k);
+            if (n + deps.length > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(2 * stack.length, n + deps.length));
+            }
+            System.arraycopy(deps, 0, stack, n, deps.length);
+            n += deps.length;
+        }
+    }
+
+    /**
+     * @return the formulas that refer to the key cell, by a reference or by a range containing it.
+     */
+    private long[] dependentsOf(long key) {
+        long[] ans = dependents.get(key);
+        if (rangeNodes.isEmpty()) {
+            return ans;
+        }
+        int x = CellEntry.keyX(key), y = CellEntry.keyY(key);
+        int n = ans.length;
+        for (long node : rangeNodes.nodesOf(x, y)) {
+            for (long f : rangeDependents.get(node)) {
+                long r = arena.find(f);
+                if (r >= 0 && RangeNodes.contains(formula(f, r).getRanges(), x, y)) {
+                    if (n == ans.length) {
+                        ans = Arrays.copyOf(ans, Math.max(4, 2 * n));
+                    }
+                    ans[n++] = f;
+                }
+            }
+        }
+        return n == ans.length ? ans : Arrays.copyOf(ans, n);
+    }
+
+    /**
+     * Returns a view of the x,y cell (or null if not in), its type is the evaluated type (e.g., ERR_CYCLE_FORM).
+     * The returned cell can not be changed, except for setData which sets the x,y cell of this sheet.
+     */
+    @Override
+    public Cell get(int x, int y) {
+        if (!isIn(x, y)) {
+            return null;
+        }
+        return arena.find(CellEntry.key(x, y)) < 0 ? EmptyCell.INSTANCE : new View(x, y);
+    }
+
+    @Override
+    public Cell get(String entry) {
+        long key = entry == null ? CellEntry.INVALID : CellEntry.parse(entry, 0, entry.length());
+        return key == CellEntry.INVALID ? null : get(CellEntry.keyX(key), CellEntry.keyY(key));
+    }
+
+    @Override
+    public String value(int x, int y) {
+        long r = isIn(x, y) ? arena.find(CellEntry.key(x, y)) : -1;
+        if (r < 0) {
+            return Ex2Utils.EMPTY_CELL;
+        }
+        int type = arena.type(r);
+        if (type == Ex2Utils.TEXT || type == Ex2Utils.NUMBER) {
+            return arena.text(r);
+        }
+        Evaluation evaluation = new Evaluation();
+        double v = evaluation.valueOf(x, y);
+        if (evaluation.getError() == Ex2Utils.ERR_CYCLE_FORM) {
+            return Ex2Utils.ERR_CYCLE;
+        }
+        return evaluation.getError() != 0 ? Ex2Utils.ERR_FORM : String.valueOf(v);
+    }
+
+    /**
+     * Evaluates the x,y cell as a number.
+     * @return the value of a number or a formula cell, NaN if it has no numeric value.
+     */
+    public double evalNumber(int x, int y) {
+        return new Evaluation().valueOf(x, y);
+    }
+
+    /**
+     * @return true iff the x,y cell is a formula with a cached value (see invalidate).
+     */
+    boolean isCached(int x, int y) {
+        long r = isIn(x, y) ? arena.find(CellEntry.key(x, y)) : -1;
+        return r >= 0 && arena.type(r) == Ex2Utils.FORM && arena.version(r) == CACHED;
+    }
+
+    @Override
+    public String eval(int x, int y) {
+        return isIn(x, y) ? value(x, y) : null;
+    }
+
+    /**
+     * Evaluates (and caches) all the formulas, evaluating does not move the records.
+     */
+    @Override
+    public void eval() {
+        for (long r = 0; r < arena.capacity(); r++) {
+            if (arena.isUsed(r) && arena.type(r) == Ex2Utils.FORM) {
+                long k = arena.key(r);
+                evalNumber(CellEntry.keyX(k), CellEntry.keyY(k));
+            }
+        }
+    }
+
+    /**
+     * Computes the dependency depth of all the cells (see Sheet.depth), each cell once.
+     */
+    @Override
+    public int[][] depth() {
+        int[][] ans = new int[width][height];
+        Map<Long, Integer> orders = new HashMap<>();
+        for (long r = 0; r < arena.capacity(); r++) {
+            if (arena.isUsed(r) && arena.type(r) == Ex2Utils.FORM) {
+                long k = arena.key(r);
+                ans[CellEntry.keyX(k)][CellEntry.keyY(k)] = order(k, orders);
+            }
+        }
+        return ans;
+    }
+
+    @Override
+    public void save(String fileName) throws IOException {
+        long[] keys = new long[(int) arena.size()];
+        int n = 0;
+        for (long r = 0; r < arena.capacity(); r++) {
+            if (arena.isUsed(r)) {
+                keys[n++] = arena.key(r);
+            }
+        }
+        Arrays.sort(keys);
+        try (SheetWriter writer = new SheetWriter(fileName)) {
+            writer.writeLine("SpreadSheet (Ex2)- saved spreadsheet");
+            for (long k : keys) {
+                writer.writeCell(CellEntry.keyX(k), CellEntry.keyY(k), arena.text(arena.find(k)));
+            }
+        }
+    }
+
+    @Override
+    public void load(String fileName) throws IOException {
+        arena.clear();
+        formulas.clear();
+        dependents.clear();
+        rangeDependents.clear();
+        rangeNodes.clear();
+        // Cells outside of the sheet grow it
+        SheetReader.read(fileName, this::set);
+    }
+
+    /**
+     * @return the compiled formula of the key cell (of record r), compiled again if it is not in the cache.
+     */
+    private Formula formula(long key, long r) {
+        Formula ans = formulas.get(key);
+        if (ans == null) {
+            ans = Formula.compile(arena.text(r));
+            formulas.put(key, ans);
+        }
+        return ans;
+    }
+
+    /**
+     * A single evaluation, see Formula.Evaluation.evaluate.
+     */
+    private class Evaluation extends Formula.Evaluation {
+        @Override
+        protected double valueOf(int x, int y) {
+            long k = CellEntry.key(x, y);
+            long r = isIn(x, y) ? arena.find(k) : -1;
+            int type = r < 0 ? Ex2Utils.TEXT : arena.type(r);
+            if (type == Ex2Utils.NUMBER) {
+                error = 0;
+                return arena.value(r);
+            }
+            if (type != Ex2Utils.FORM) {
+                error = Ex2Utils.ERR_FORM_FORMAT;
+                return Double.NaN;
+            }
+            if (arena.version(r) == CACHED) {
+                error = arena.error(r);
+                return arena.value(r);
+            }
+            return evaluate(k);
+        }
+
+        @Override
+        protected Formula uncached(long key) {
+            long r = isIn(CellEntry.keyX(key), CellEntry.keyY(key)) ? arena.find(key) : -1;
+            if (r < 0 || arena.type(r) != Ex2Utils.FORM || arena.version(r) == CACHED) {
+                return null;
+            }
+            return formula(key, r);
+        }
+
+        @Override
+        protected void cache(long key, double value, int error) {
+            // A cycle error is cached as well: it is found in the reference tables, which only change with a set
+            arena.setValue(arena.find(key), value, CACHED, error);
+        }
+
+        @Override
+        protected boolean isBlank(int x, int y) {
+            long r = isIn(x, y) ? arena.find(CellEntry.key(x, y)) : -1;
+            return r < 0 || arena.type(r) == Ex2Utils.TEXT;
+        }
+
+        @Override
+        protected int width() {
+            return width;
+        }
+
+        @Override
+        protected int height() {
+            return height;
+        }
+    }
+
+    /**
+     * Computes the order of the key cell (see Cell.getOrder), see Formula.order.
+     * @param orders the orders computed so far (by this search or a previous one).
+     */
+    private int order(long key, Map<Long, Integer> orders) {
+        return Formula.order(key, k -> {
+            long r = arena.find(k);
+            return r < 0 || arena.type(r) != Ex2Utils.FORM ? null : formula(k, r);
+        }, width, height, orders);
+    }
+
+    /**
+     * A flyweight view of a stored cell, it reads the record of the cell on every call.
+     */
+    private class View implements Cell {
+        private final int x, y;
+
+        View(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public String getData() {
+            long r = arena.find(CellEntry.key(x, y));
+            return r < 0 ? Ex2Utils.EMPTY_CELL : arena.text(r);
+        }
+
+        /**
+         * Sets the x,y cell of the sheet.
+         */
+        @Override
+        public void setData(String s) {
+            set(x, y, s);
+        }
+
+        @Override
+        public int getType() {
+            long r = arena.find(CellEntry.key(x, y));
+            int type = r < 0 ? Ex2Utils.TEXT : arena.type(r);
+            if (type != Ex2Utils.FORM) {
+                return type;
+            }
+            Evaluation evaluation = new Evaluation();
+            evaluation.valueOf(x, y);
+            return evaluation.getError() == 0 ? Ex2Utils.FORM : evaluation.getError();
+        }
+
+        @Override
+        public void setType(int t) {
+            throw new UnsupportedOperationException("The type of a cell is computed by the sheet");
+        }
+
+        @Override
+        public int getOrder() {
+            return order(CellEntry.key(x, y), new HashMap<>());
+        }
+
+        @Override
+        public void setOrder(int t) {
+            throw new UnsupportedOperationException("The order of a cell is computed by the sheet");
+        }
+
+        @Override
+        public String toString() {
+            return value(x, y);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.Arrays;
+
+/**
+ * An index of the values of a sheet for the range functions (see Formula): a segment tree per column
+ * holding the sum, count, min and max of the numeric cells of every range of rows, the number of cells with an error
+ * and the max order of the cells (see Cell.getOrder), so the order of a formula over a range is found without its cells.
+ * Setting a cell and folding a range of a column both cost O(log(height)), so a range of w columns costs O(w log(height))
+ * instead of a loop over all of its cells. The columns grow (by doubling) with the rows set in them,
+ * up to MAX_ROWS rows: the cells below them are not indexed, and a range reaching them is not folded.
+ */
+public class RangeIndex {
+    /** The rows of a column the index holds (the arrays of a column are twice as long). */
+    public static final int MAX_ROWS = 1 << 29;
+
+    private Column[] columns = new Column[0];
+
+    /** Returned by maxOrder for a range the index does not hold. */
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+    private static final int CYCLE = Integer.MAX_VALUE;  // the order of a cycle (Ex2Utils.ERR) is above any other
+
+    /**
+     * Sets the numeric value of the x,y cell.
+     * @param order the order of the cell (see Cell.getOrder).
+     */
+    public void set(int x, int y, double value, int order) {
+        if (y < MAX_ROWS) {
+            column(x, y).set(y, value, 1, 0, order);
+        }
+    }
+
+    /**
+     * Marks the x,y cell as empty (or a text), the range functions skip it.
+     */
+    public void clear(int x, int y) {
+        if (x < columns.length && columns[x] != null && y < columns[x].capacity) {
+            columns[x].set(y, 0, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Marks the x,y cell as an error, a range with such a cell can not be folded by the index.
+     * @param order the order of the cell, Ex2Utils.ERR for a cycle.
+     */
+    public void setError(int x, int y, int order) {
+        if (y < MAX_ROWS) {
+            column(x, y).set(y, 0, 0, 1, order);
+        }
+    }
+
+    /**
+     * @return the max order of the cells of the x0..x1, y0..y1 range (inclusive, 0 for none), Ex2Utils.ERR if any of
+     * them is in (or depends on) a cycle, UNKNOWN if the range reaches MAX_ROWS.
+     */
+    public int maxOrder(int x0, int y0, int x1, int y1) {
+        if (y1 >= MAX_ROWS) {
+            return UNKNOWN;
+        }
+        int ans = 0;
+        for (int x = x0; x <= x1 && x < columns.length; x++) {
+            Column column = columns[x];
+            if (column == null || y0 >= column.capacity) {
+                continue;
+            }
+            int lo = y0 + column.capacity, hi = Math.min(y1, column.capacity - 1) + 1 + column.capacity;
+            for (; lo < hi; lo >>= 1, hi >>= 1) {
+                if ((lo & 1) == 1) {
+                    ans = Math.max(ans, column.order[lo++]);
+                }
+                if ((hi & 1) == 1) {
+                    ans = Math.max(ans, column.order[--hi]);
+                }
+            }
+        }
+        return ans == CYCLE ? Ex2Utils.ERR : ans;
+    }
+
+    /**
+     * Folds the cells of the x0..x1, y0..y1 range (inclusive) into the sum, count, min and max at acc[at..at+3].
+     * @return false (and acc is unchanged) if a cell of the range has an error, or the range reaches MAX_ROWS.
+     */
+    public boolean fold(int x0, int y0, int x1, int y1, double[] acc, int at) {
+        if (y1 >= MAX_ROWS) {
+            return false;
+        }
+        double sum = 0, count = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (int x = x0; x <= x1 && x < columns.length; x++) {
+            Column column = columns[x];
+            if (column == null || y0 >= column.capacity) {
+                continue;
+            }
+            // Bottom-up over the leaves [lo, hi)
+            int lo = y0 + column.capacity, hi = Math.min(y1, column.capacity - 1) + 1 + column.capacity;
+            for (; lo < hi; lo >>= 1, hi >>= 1) {
+                if ((lo & 1) == 1) {
+                    if (column.errors[lo] > 0) return false;
+                    sum += column.sum[lo];
+                    count += column.count[lo];
+                    min = Math.min(min, column.min[lo]);
+                    max = Math.max(max, column.max[lo]);
+                    lo++;
+                }
+                if ((hi & 1) == 1) {
+                    hi--;
+                    if (column.errors[hi] > 0) return false;
+                    sum += column.sum[hi];
+                    count += column.count[hi];
+                    min = Math.min(min, column.min[hi]);
+                    max = Math.max(max, column.max[hi]);
+                }
+            }
+        }
+        acc[at] += sum;
+        acc[at + 1] += count;
+        acc[at + 2] = Math.min(acc[at + 2], min);
+        acc[at + 3] = Math.max(acc[at + 3], max);
+        return true;
+    }
+
+    private Column column(int x, int y) {
+        if (x >= columns.length) {
+            columns = Arrays.copyOf(columns, (int) Math.min(Math.max(x + 1L, 2L * columns.length), Integer.MAX_VALUE));
+        }
+        if (columns[x] == null) {
+            columns[x] = new Column(y + 1);
+        } else if (y >= columns[x].capacity) {
+            columns[x] = columns[x].grow(y + 1);
+        }
+        return columns[x];
+    }
+
+    /**
+     * A segment tree over the rows of a column: node i covers its children 2i and 2i+1, the leaves are capacity+y.
+     */
+    private static final class Column {
+        private final int capacity;  // a power of 2
+        private final double[] sum, min, max;
+        private final int[] count, errors, order;
+
+        Column(int rows) {
+            capacity = Integer.highestOneBit(Math.max(1, rows - 1)) << 1;
+            sum = new double[2 * capacity];
+            count = new int[2 * capacity];
+            errors = new int[2 * capacity];
+            order = new int[2 * capacity];
+            min = new double[2 * capacity];
+            max = new double[2 * capacity];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        }
+
+        void set(int y, double value, int count, int errors, int order) {
+            int i = capacity + y;
+            sum[i] = count == 0 ? 0 : value;
+            this.count[i] = count;
+            this.errors[i] = errors;
+            this.order[i] = order == Ex2Utils.ERR ? CYCLE : order;
+            min[i] = count == 0 ? Double.POSITIVE_INFINITY : value;
+            max[i] = count == 0 ? Double.NEGATIVE_INFINITY : value;
+            for (i >>= 1; i > 0; i >>= 1) {
+                pull(i);
+            }
+        }
+
+        private void pull(int i) {
+            int l = 2 * i, r = l + 1;
+            sum[i] = sum[l] + sum[r];
+            count[i] = count[l] + count[r];
+            errors[i] = errors[l] + errors[r];
+            order[i] = Math.max(order[l], order[r]);
+            min[i] = Math.min(min[l], min[r]);
+            max[i] = Math.max(max[l], max[r]);
+        }
+
+        /**
+         * @return a column of at least the given rows with the leaves of this one, rebuilt in O(capacity).
+         */
+        Column grow(int rows) {
+            Column ans = new Column(Math.min(Math.max(rows, 2 * capacity), MAX_ROWS));
+            System.arraycopy(sum, capacity, ans.sum, ans.capacity, capacity);
+            System.arraycopy(count, capacity, ans.count, ans.capacity, capacity);
+            System.arraycopy(errors, capacity, ans.errors, ans.capacity, capacity);
+            System.arraycopy(order, capacity, ans.order, ans.capacity, capacity);
+            System.arraycopy(min, capacity, ans.min, ans.capacity, capacity);
+            System.arraycopy(max, capacity, ans.max, ans.capacity, capacity);
+            for (int i = ans.capacity - 1; i > 0; i--) {
+                ans.pull(i);
+            }
+            return ans;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.Arrays;
+
+/**
+ * Tracks the ranges the formulas of a sheet refer to (e.g., SUM(A1:A100000)) as a single node each, instead of an
+ * entry per cell. A node is an aligned block of 2^lx columns by 2^ly rows (lx and ly are its levels) starting at
+ * a multiple of its size, and a range is kept at the smallest node containing it. The nodes of the same levels do not
+ * overlap, so the ranges containing a cell are all in the nodes containing it: one node per pair of levels in use,
+ * whose key is a shift of the x and y of the cell (see nodesOf).
+ *
+ * The sheet keeps the formulas of every node by its key and checks their ranges against the cell (see contains):
+ * adding or removing a range costs O(1) whatever its size, and a cell costs a lookup per pair of levels in use
+ * (usually a handful) and the ranges of its nodes.
+ */
+public class RangeNodes {
+    private static final int LEVELS = 32;  // the levels of an int coordinate: a node of level 31 spans all of them
+
+    private final int[] counts = new int[LEVELS * LEVELS];  // the ranges of every pair of levels, by lx * LEVELS + ly
+    private int[] used = new int[0];  // the pairs of levels with ranges
+
+    /**
+     * Adds the x0..x1, y0..y1 range (inclusive, none negative).
+     * @return the key of its node.
+     */
+    public long add(int x0, int y0, int x1, int y1) {
+        int lx = level(x0, x1), ly = level(y0, y1);
+        if (counts[lx * LEVELS + ly]++ == 0) {
+            updateUsed();
+        }
+        return node(lx, ly, x0, y0);
+    }
+
+    /**
+     * Removes a range added by add.
+     * @return the key of its node.
+     */
+    public long remove(int x0, int y0, int x1, int y1) {
+        int lx = level(x0, x1), ly = level(y0, y1);
+        if (--counts[lx * LEVELS + ly] == 0) {
+            updateUsed();
+        }
+        return node(lx, ly, x0, y0);
+    }
+
+    /**
+     * @return the keys of the nodes (of the pairs of levels in use) containing the x,y cell.
+     */
+    public long[] nodesOf(int x, int y) {
+        long[] ans = new long[used.length];
+        for (int i = 0; i < used.length; i++) {
+            ans[i] = node(used[i] / LEVELS, used[i] % LEVELS, x, y);
+        }
+        return ans;
+    }
+
+    public boolean isEmpty() {
+        return used.length == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        used = new int[0];
+    }
+
+    /**
+     * @param ranges x0,y0,x1,y1 quads (see Formula.getRanges), may be null.
+     * @return true iff any of the ranges contains the x,y cell.
+     */
+    public static boolean contains(int[] ranges, int x, int y) {
+        for (int i = 0; ranges != null && i < ranges.length; i += 4) {
+            if (x >= ranges[i] && y >= ranges[i + 1] && x <= ranges[i + 2] && y <= ranges[i + 3]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the level of the smallest node containing both a and b: a >>> level == b >>> level.
+     */
+    private static int level(int a, int b) {
+        return LEVELS - Integer.numberOfLeadingZeros(a ^ b);
+    }
+
+    /**
+     * @return the key of the node of the given levels containing the x,y cell: per coordinate, the index of the node
+     * in a binary tree over all the ints (1 for the root), which is unique over all the levels.
+     */
+    private static long node(int lx, int ly, int x, int y) {
+        long nx = (1L << (LEVELS - 1 - lx)) | (x >>> lx), ny = (1L << (LEVELS - 1 - ly)) | (y >>> ly);
+        return (nx << 32) | ny;
+    }
+
+    private void updateUsed() {
+        int n = 0;
+        for (int count : counts) {
+            n += count > 0 ? 1 : 0;
+        }
+        used = new int[n];
+        for (int i = 0, j = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                used[j++] = i;
+            }
+        }
+    }
+}
@@ -1,214 +1,208 @@
+import java.io.IOException;
+
 public class SCell implements Cell {
+    private static final int[] NO_REFERENCES = {};
+
     private String data;  // Use only this variable, remove 'line'
     private int type;
     private int order;
     private Sheet parent;
     private boolean isProcessing;
+    private double value;    // the cached result of the formula, valid while !dirty
+    private boolean dirty;   // true if the formula (or one of its precedents) changed since the last evaluation
+    private Formula formula; // the compiled formula, null if this cell is not a (valid) formula
 
     public SCell(String s) {
         setData(s);
         isProcessing = false;
     }
 
+    private SCell() {
+    }
+
+    /**
+     * Writes this cell with its compiled formula and computed value (for Ex2Sheet.saveSnapshot).
+     */
+    void writeTo(SnapshotWriter out) throws IOException {
+        out.writeString(data);
+        out.writeVarInt(type);
+        out.writeVarInt(order);
+        out.writeDouble(value);
+        out.writeByte((dirty ? 1 : 0) | (formula != null ? 2 : 0));
+        if (formula != null) {
+            formula.writeTo(out);
+        }
+    }
+
+    /**
+     * @return a cell written by writeTo, in the same state (nothing is parsed or evaluated), without a sheet.
+     */
+    static SCell readFrom(SnapshotReader in) throws IOException {
+        SCell ans = new SCell();
+        ans.data = in.readString();
+        ans.type = in.readVarInt();
+        ans.order = in.readVarInt();
+        ans.value = in.readDouble();
+        int flags = in.readByte();
+        ans.dirty = (flags & 1) != 0;
+        ans.formula = (flags & 2) != 0 ? Formula.readFrom(in) : null;
+        return ans;
+    }
+
     public void setSheet(Sheet sheet) {
         this.parent = sheet;
     }
 
     @Override
     public int getOrder() {
-        if (isNumber(getData())) {
-            return 0;    // Numbers get order 0
-        } else if (isForm(getData())) {
-            if (isProcessing) {
-                return -1;  // Cycle detected
-            }
-            return 1;    // Formulas get order 1
-        }
-        return 0;        // Text gets order 0
+        return order;    // Numbers and text get order 0, formulas are set by the sheet (-1 for a cycle)
     }
 
     @Override
     public void setData(String s) {
         data = s;
+        formula = null;
+        order = 0;
         if (isNumber(s)) {
             setType(Ex2Utils.NUMBER);
-        } else if (isForm(s)) {
+            value = Double.parseDouble(s);
+            dirty = false;
+        } else if (s != null && s.startsWith("=")) {
             // First convert formula to uppercase
             data = s.toUpperCase();
-            // Try to evaluate it immediately to set the correct error state
-            setType(Ex2Utils.FORM);
-            String result = evalForm();
-            if (result.equals(Ex2Utils.ERR_FORM)) {
-                setType(Ex2Utils.ERR_FORM_FORMAT);
-            } else if (result.equals(Ex2Utils.ERR_CYCLE)) {
-                setType(Ex2Utils.ERR_CYCLE_FORM);
-            }
+            // Compile it once, an invalid formula stays null (ERR_FORM)
+            formula = Formula.compile(data);
+            // At least 1 if it refers to other cells, the exact order is known once the sheet evaluates it
+            order = formula != null && (formula.getReferenceCount() > 0 || formula.getRanges().length > 0) ? 1 : 0;
+            // The evaluation is deferred until the precedents are known (by the sheet, or on the first read)
+            setType(formula == null ? Ex2Utils.ERR_FORM_FORMAT : Ex2Utils.FORM);
+            dirty = formula != null;
         } else {
             setType(Ex2Utils.TEXT);
         }
     }
 
-
-    @Override
-    public String getData() {
-        return data;  // Use data instead of line
-    }
-
-    @Override
-    public String toString() {
-        if (type == Ex2Utils.FORM ||
-                type == Ex2Utils.ERR_FORM_FORMAT ||
-                type == Ex2Utils.ERR_CYCLE_FORM) {
+    /**
+     * Re-evaluates the formula of this cell (if any) and updates its type,
+     * so a cell that was an error before can become a valid formula again.
+     */
+    public void evaluate() {
+        if (formula != null) {
+            setType(Ex2Utils.FORM);
+            isProcessing = true;
             try {
-                String result = evalForm();
-                // Return error messages for error states
-                if (type == Ex2Utils.ERR_FORM_FORMAT) {
-                    return Ex2Utils.ERR_FORM;
-                }
-                if (type == Ex2Utils.ERR_CYCLE_FORM) {
-                    return Ex2Utils.ERR_CYCLE;
-                }
-                return result;
-            } catch (Exception e) {
-                type = Ex2Utils.ERR_FORM_FORMAT;
-                return Ex2Utils.ERR_FORM;
+                value = formula.eval(parent);
+            } finally {
+                isProcessing = false;
+            }
+            if (formula.getError() != 0) {
+                setType(formula.getError());
             }
+        } else if (data != null && data.startsWith("=")) {
+            setType(Ex2Utils.ERR_FORM_FORMAT);
         }
-        return data;
+        dirty = false;
     }
 
-    private String evalForm() {
-        if (isProcessing) {
-            type = Ex2Utils.ERR_CYCLE_FORM;
-            return Ex2Utils.ERR_CYCLE;
+    /**
+     * Returns the numeric value of this cell, evaluating its formula first if it is dirty.
+     * @return the value of a number or a formula cell (only meaningful if getType() is NUMBER or FORM).
+     */
+    public double getValue() {
+        if (dirty) {
+            evaluate();
         }
+        return value;
+    }
 
-        isProcessing = true;
-        try {
-            String processedFormula = processCellRef(data);
-
-            if (processedFormula.equals(Ex2Utils.ERR_FORM)) {
-                type = Ex2Utils.ERR_FORM_FORMAT;
-                return Ex2Utils.ERR_FORM;
-            }
-            if (processedFormula.equals(Ex2Utils.ERR_CYCLE)) {
-                type = Ex2Utils.ERR_CYCLE_FORM;
-                return Ex2Utils.ERR_CYCLE;
-            }
-
-            double value = computeForm(processedFormula);
-            if (value == -1 && !processedFormula.equals("=-1")) {
-                type = Ex2Utils.ERR_FORM_FORMAT;
-                return Ex2Utils.ERR_FORM;
-            }
-
-            return String.valueOf(value);
-        } finally {
-            isProcessing = false;
+    /**
+     * @return 0 if this cell has a numeric value (a number or a valid formula), else the error type
+     * a formula referring to it gets (Ex2Utils.ERR_FORM_FORMAT or ERR_CYCLE_FORM).
+     */
+    public int getValueError() {
+        int t = getType();
+        if (t == Ex2Utils.NUMBER || t == Ex2Utils.FORM) {
+            return 0;
         }
+        return t == Ex2Utils.ERR_CYCLE_FORM ? Ex2Utils.ERR_CYCLE_FORM : Ex2Utils.ERR_FORM_FORMAT;
     }
 
+    boolean isProcessing() {
+        return isProcessing;
+    }
 
+    /**
+     * Marks the cached value of this cell as out of date, it will be re-evaluated on the next read.
+     */
+    public void markDirty() {
+        dirty = true;
+    }
 
-    private String processCellRef(String formula) {
-        if (parent == null || !formula.startsWith("=")) return formula;
-
-        StringBuilder processed = new StringBuilder("=");
-        StringBuilder cellRef = new StringBuilder();
-        boolean buildingRef = false;
-
-        // Skip the '=' sign
-        for (int i = 1; i < formula.length(); i++) {
-            char c = Character.toUpperCase(formula.charAt(i));  // Convert to uppercase immediately
+    public boolean isDirty() {
+        return dirty;
+    }
 
-            if (Character.isLetter(c) && i + 1 < formula.length() &&
-                    Character.isDigit(formula.charAt(i + 1))) {
-                buildingRef = true;
-                cellRef.append(c);
-                continue;
-            }
+    /**
+     * Marks this cell as part of a circular dependency (found by the sheet) without evaluating it.
+     */
+    public void setCycle() {
+        setType(Ex2Utils.ERR_CYCLE_FORM);
+        setOrder(Ex2Utils.ERR);
+        dirty = false;
+    }
 
-            if (buildingRef && Character.isDigit(c)) {
-                cellRef.append(c);
-                continue;
-            }
+    /**
+     * @return false iff the formula of this cell was evaluated without reading the x,y cell (it is only referred to
+     * by untaken IF branches, see Formula.isLive), so a new value of that cell does not change this one.
+     */
+    public boolean isLive(int x, int y) {
+        return formula == null || dirty || type == Ex2Utils.ERR_CYCLE_FORM || formula.isLive(x, y);
+    }
 
-            if (buildingRef) {
-                // Process the cell reference
-                String ref = cellRef.toString();
-                Cell referencedCell = parent.get(ref);
-                if (referencedCell instanceof SCell && ((SCell)referencedCell).isProcessing) {
-                    return Ex2Utils.ERR_CYCLE;
-                }
-
-                if (referencedCell != null) {
-                    if (referencedCell.getType() == Ex2Utils.NUMBER) {
-                        processed.append(referencedCell.getData());
-                    } else if (referencedCell.getType() == Ex2Utils.FORM) {
-                        String value = referencedCell.toString();
-                        if (value.equals(Ex2Utils.ERR_FORM) ||
-                                value.equals(Ex2Utils.ERR_CYCLE)) {
-                            return value;
-                        }
-                        // Make sure we're getting a numeric value
-                        try {
-                            double numValue = Double.parseDouble(value);
-                            processed.append(numValue);
-                        } catch (NumberFormatException e) {
-                            return Ex2Utils.ERR_FORM;
-                        }
-                    } else {
-                        return Ex2Utils.ERR_FORM;
-                    }
-                } else {
-                    return Ex2Utils.ERR_FORM;
-                }
-                cellRef.setLength(0);
-                buildingRef = false;
-            }
+    /**
+     * Returns the cells referenced by the formula of this cell (its precedents).
+     * @return the reference table of the formula as x,y pairs (see Formula.getReferences), empty if this cell is not a formula.
+     */
+    public int[] getReferences() {
+        return formula == null ? NO_REFERENCES : formula.getReferences();
+    }
 
-            processed.append(c);
-        }
+    /**
+     * @return the ranges of the formula of this cell as x0,y0,x1,y1 quads (see Formula.getRanges),
+     * empty if this cell is not a formula.
+     */
+    public int[] getRanges() {
+        return formula == null ? NO_REFERENCES : formula.getRanges();
+    }
 
-        // Handle last cell reference if exists
-        if (buildingRef) {
-            String ref = cellRef.toString();
-            Cell referencedCell = parent.get(ref);
-            if (referencedCell instanceof SCell && ((SCell)referencedCell).isProcessing) {
-                return Ex2Utils.ERR_CYCLE;
-            }
+    @Override
+    public String getData() {
+        return data;  // Use data instead of line
+    }
 
-            if (referencedCell != null) {
-                if (referencedCell.getType() == Ex2Utils.NUMBER) {
-                    processed.append(referencedCell.getData());
-                } else if (referencedCell.getType() == Ex2Utils.FORM) {
-                    String value = referencedCell.toString();
-                    if (value.equals(Ex2Utils.ERR_FORM) ||
-                            value.equals(Ex2Utils.ERR_CYCLE)) {
-                        return value;
-                    }
-                    // Make sure we're getting a numeric value
-                    try {
-                        double numValue = Double.parseDouble(value);
-                        processed.append(numValue);
-                    } catch (NumberFormatException e) {
-                        return Ex2Utils.ERR_FORM;
-                    }
-                } else {
-                    return Ex2Utils.ERR_FORM;
-                }
-            } else {
+    @Override
+    public String toString() {
+        if (type == Ex2Utils.FORM ||
+                type == Ex2Utils.ERR_FORM_FORMAT ||
+                type == Ex2Utils.ERR_CYCLE_FORM) {
+            double v = getValue();
+            // Return error messages for error states
+            if (type == Ex2Utils.ERR_FORM_FORMAT) {
                 return Ex2Utils.ERR_FORM;
             }
+            if (type == Ex2Utils.ERR_CYCLE_FORM) {
+                return Ex2Utils.ERR_CYCLE;
+            }
+            return String.valueOf(v);
         }
-
-        return processed.toString();
+        return data;
     }
 
-
-
     @Override
     public int getType() {
+        if (dirty) {
+            evaluate();
+        }
         return type;
     }
 
@@ -222,96 +216,17 @@ public class SCell implements Cell {
         order = t;
     }
 
+    /**
+     * Computes a formula without cell references (e.g., "=(2+3)*2").
+     * @return the value of the formula, -1 if it is not a valid formula.
+     */
     public static double computeForm(String formula) {
-        if (!formula.startsWith("=")) return -1;
-        formula = formula.substring(1).trim().toUpperCase();
-
-        try {
-            // Handle nested parentheses recursively
-            while (formula.contains("(")) {
-                int start = formula.lastIndexOf("(");
-                int end = formula.indexOf(")", start);
-                if (end == -1) return -1;
-
-                String innerExpr = formula.substring(start + 1, end);
-                double innerResult = evaluateExpression(innerExpr);
-
-                formula = formula.substring(0, start) +
-                        innerResult +
-                        formula.substring(end + 1);
-            }
-
-            return evaluateExpression(formula);
-        } catch (Exception e) {
-            return -1;
-        }
-    }
-
-    private static double evaluateExpression(String expr) {
-        expr = expr.trim();
-
-        // If it's just a number, return it
-        if (expr.matches("-?\\d+(\\.\\d+)?")) {
-            return Double.parseDouble(expr);
-        }
-
-        // Find operators from right to left, handling precedence
-        // First look for addition/subtraction (lower precedence)
-        int lastAdd = -1;
-        int lastSub = -1;
-        int parentheses = 0;
-
-        // Scan from right to left to find the rightmost + or - not in parentheses
-        for (int i = expr.length() - 1; i >= 0; i--) {
-            char c = expr.charAt(i);
-            if (c == ')') parentheses++;
-            else if (c == '(') parentheses--;
-            else if (parentheses == 0) {
-                if (c == '+' && (i == 0 || !isOperator(expr.charAt(i-1)))) lastAdd = i;
-                else if (c == '-' && (i == 0 || !isOperator(expr.charAt(i-1)))) lastSub = i;
-            }
-        }
-
-        // Handle addition or subtraction if found
-        int opIndex = Math.max(lastAdd, lastSub);
-        if (opIndex >= 0) {
-            char operator = expr.charAt(opIndex);
-            String leftStr = expr.substring(0, opIndex).trim();
-            String rightStr = expr.substring(opIndex + 1).trim();
-
-            // Handle case where minus is a unary operator
-            if (opIndex == 0 && operator == '-') {
-                return -evaluateExpression(rightStr);
-            }
-
-            double left = evaluateExpression(leftStr);
-            double right = evaluateExpression(rightStr);
-
-            return operator == '+' ? left + right : left - right;
-        }
-
-        // If no addition/subtraction, look for multiplication/division
-        int lastMul = expr.lastIndexOf('*');
-        int lastDiv = expr.lastIndexOf('/');
-        opIndex = Math.max(lastMul, lastDiv);
-
-        if (opIndex >= 0) {
-            char operator = expr.charAt(opIndex);
-            String leftStr = expr.substring(0, opIndex).trim();
-            String rightStr = expr.substring(opIndex + 1).trim();
-
-            double left = evaluateExpression(leftStr);
-            double right = evaluateExpression(rightStr);
-
-            if (operator == '*') return left * right;
-            if (operator == '/' && right != 0) return left / right;
-            return -1; // Division by zero
-        }
-
-        return -1; // Invalid expression
+        Formula f = Formula.compile(formula == null ? null : formula.trim().toUpperCase());
+        if (f == null) return -1;
+        double value = f.eval((Sheet) null);
+        return f.getError() == 0 ? value : -1;
     }
 
-
     public boolean isNumber(String txt) {
         if (txt == null || txt.isEmpty()) return false;
         try {
@@ -342,7 +257,8 @@ public class SCell implements Cell {
                     c != '+' && c != '-' &&
                     c != '*' && c != '/' &&
                     c != '(' && c != ')' &&
-                    c != '.') {
+                    c != '.' && c != ':' && c != ',' &&
+                    c != '<' && c != '>' && c != '=' && c != '!') {
                 return false;
             }
 
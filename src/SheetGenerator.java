@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Generates large sheets in the Ex2Sheet.save format, for benchmarks and soak tests.
+ * The same seed (and settings) always generates the same file.
+ *
+ * The cells fill the sheet row by row. Every cell is a formula (with probability formulas), a text
+ * (with probability texts) or a number. A formula refers to fanIn cells generated before it, so the
+ * sheet has no cycles except the injected ones:
+ * - fanOut: the number of "hot" cells getting half of all the references (0 for uniform references).
+ * - chain: the length of the chains of formulas, each formula of a chain refers to the previous one (0 for none).
+ * - cycles: the ratio of formulas replaced by a pair of cells referring to each other.
+ * - errors: the ratio of formulas replaced by an invalid formula (a syntax error or a division by zero).
+ *
+ * Usage: java SheetGenerator file [cells=10000] [width=100] [height=cells/width]
+ *        [formulas=0.3] [texts=0.1] [fanin=2] [fanout=0] [chain=0] [cycles=0] [errors=0] [seed=1]
+ */
+public class SheetGenerator {
+    private final long seed;
+    private int cells = 10000, width = 100, height;
+    private double formulas = 0.3, texts = 0.1, cycles, errors;
+    private int fanIn = 2, fanOut, chain;
+
+    public SheetGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    public void setSize(int cells, int width, int height) {
+        if (cells < 0 || width < 1 || height < 1 || (long) width * height < cells) {
+            throw new IllegalArgumentException("Can not fit " + cells + " cells in " + width + "x" + height);
+        }
+        this.cells = cells;
+        this.width = width;
+        this.height = height;
+    }
+
+    public void setFormulas(double formulas) {
+        this.formulas = formulas;
+    }
+
+    public void setTexts(double texts) {
+        this.texts = texts;
+    }
+
+    public void setFanIn(int fanIn) {
+        this.fanIn = Math.max(1, fanIn);
+    }
+
+    public void setFanOut(int fanOut) {
+        this.fanOut = Math.max(0, fanOut);
+    }
+
+    public void setChain(int chain) {
+        this.chain = Math.max(0, chain);
+    }
+
+    public void setCycles(double cycles) {
+        this.cycles = cycles;
+    }
+
+    public void setErrors(double errors) {
+        this.errors = errors;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height == 0 ? Math.max(1, (cells + width - 1) / width) : height;
+    }
+
+    /**
+     * Writes the generated sheet.
+     * @throws IOException if the file can not be written.
+     */
+    public void write(String fileName) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        // The cells that may be referred to (numbers and valid formulas), as x,y keys in generation order
+        long[] targets = new long[1024];
+        int targetCount = 0;
+        long chainLast = -1;  // the last formula of the current chain
+        int chainLength = 0;
+        try (SheetWriter writer = new SheetWriter(fileName)) {
+            writer.writeLine("SpreadSheet (Ex2)- saved spreadsheet");
+            for (int i = 0; i < cells; i++) {
+                int x = i % width, y = i / width;
+                double kind = random.nextDouble();
+                if (kind >= formulas || targetCount == 0) {
+                    if (kind - formulas < texts && targetCount > 0) {
+                        writer.writeCell(x, y, "text" + random.nextInt(1000));
+                        continue;
+                    }
+                    writer.writeCell(x, y, String.valueOf(random.nextInt(1000)));
+                } else if (random.nextDouble() < cycles && i + 1 < cells) {
+                    // Two cells referring to each other
+                    int nx = (i + 1) % width, ny = (i + 1) / width;
+                    writer.writeCell(x, y, "=" + CellEntry.name(nx, ny) + "+1");
+                    writer.writeCell(nx, ny, "=" + CellEntry.name(x, y) + "+1");
+                    i++;
+                    continue;
+                } else if (random.nextDouble() < errors) {
+                    long ref = targets[random.nextInt(targetCount)];
+                    String r = CellEntry.name(CellEntry.keyX(ref), CellEntry.keyY(ref));
+                    writer.writeCell(x, y, random.nextBoolean() ? "=" + r + "++1" : "=" + r + "/0");
+                    continue;
+                } else {
+                    StringBuilder form = new StringBuilder("=");
+                    int refs = 1 + random.nextInt(fanIn);
+                    if (chain > 0 && chainLast >= 0 && chainLength < chain) {
+                        form.append(CellEntry.name(CellEntry.keyX(chainLast), CellEntry.keyY(chainLast)));
+                        refs--;
+                        chainLength++;
+                    } else {
+                        chainLength = 1;
+                    }
+                    for (int r = 0; r < refs; r++) {
+                        int bound = fanOut > 0 && random.nextBoolean() ? Math.min(fanOut, targetCount) : targetCount;
+                        long ref = targets[random.nextInt(bound)];
+                        if (form.length() > 1) {
+                            form.append(random.nextBoolean() ? '+' : '*');
+                        }
+                        form.append(CellEntry.name(CellEntry.keyX(ref), CellEntry.keyY(ref)));
+                    }
+                    writer.writeCell(x, y, form.toString());
+                    chainLast = CellEntry.key(x, y);
+                }
+                if (targetCount == targets.length) {
+                    targets = Arrays.copyOf(targets, targetCount * 2);
+                }
+                targets[targetCount++] = CellEntry.key(x, y);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java SheetGenerator file [cells=10000] [width=100] [height=cells/width] [formulas=0.3]"
+                    + " [texts=0.1] [fanin=2] [fanout=0] [chain=0] [cycles=0] [errors=0] [seed=1]");
+            System.exit(1);
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "");
+        }
+        SheetGenerator generator = new SheetGenerator(Long.parseLong(options.getOrDefault("seed", "1")));
+        int cells = Integer.parseInt(options.getOrDefault("cells", "10000"));
+        int width = Integer.parseInt(options.getOrDefault("width", "100"));
+        int height = Integer.parseInt(options.getOrDefault("height", String.valueOf(Math.max(1, (cells + width - 1) / width))));
+        generator.setSize(cells, width, height);
+        generator.setFormulas(Double.parseDouble(options.getOrDefault("formulas", "0.3")));
+        generator.setTexts(Double.parseDouble(options.getOrDefault("texts", "0.1")));
+        generator.setFanIn(Integer.parseInt(options.getOrDefault("fanin", "2")));
+        generator.setFanOut(Integer.parseInt(options.getOrDefault("fanout", "0")));
+        generator.setChain(Integer.parseInt(options.getOrDefault("chain", "0")));
+        generator.setCycles(Double.parseDouble(options.getOrDefault("cycles", "0")));
+        generator.setErrors(Double.parseDouble(options.getOrDefault("errors", "0")));
+        generator.write(args[0]);
+        System.out.println("Generated " + cells + " cells (" + width + "x" + height + ") in " + args[0]);
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of cell edits (a write-ahead log, see JournaledSheet): every set(x, y, data) is a record
+ * of its own, so persisting an edit costs the size of the edit rather than a save of the whole sheet.
+ *
+ * The records are appended to a buffer and written together (group commit), the Sync policy decides when they are
+ * written and forced to the disk. A journal starts with MAGIC and VERSION,
+ * a record is its payload length, the CRC32 of its payload and the payload: x, y and the UTF-8 bytes of the data
+ * (big endian). A record cut by a crash (or otherwise corrupted) ends the journal, see replay.
+ */
+public class SheetJournal implements Closeable {
+    /** The first int of a journal ("EX2J"). */
+    public static final int MAGIC = 0x4558324A;
+    /** The version of the format, incremented by every incompatible change of it. */
+    public static final int VERSION = 1;
+    private static final int HEADER = 8, RECORD_HEADER = 8;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * When the appended records are written and forced to the disk (FileChannel.force), from the safest to the fastest.
+     */
+    public enum Sync {
+        /** Every commit is forced before it returns: no committed edit is lost by a crash of the machine. */
+        COMMIT,
+        /**
+         * The records of an interval are written and forced together by a background thread (commit only buffers them):
+         * at most an interval of edits is lost by a crash.
+         */
+        INTERVAL,
+        /** Every commit is written but never forced (until close): the edits survive a crash of the process, not of the machine. */
+        NONE
+    }
+
+    private final FileChannel channel;
+    private final Sync sync;
+    private final ScheduledExecutorService syncer;  // writes and forces the journal every interval (INTERVAL only)
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long size;  // the bytes written (or buffered)
+    private boolean unforced;  // records were written since the last force
+
+    /**
+     * Creates a new (empty) journal, the file must not exist.
+     * @param intervalMillis the interval of the INTERVAL policy (ignored by the others).
+     * @throws IOException if the file exists or can not be created.
+     */
+    public SheetJournal(String fileName, Sync sync, long intervalMillis) throws IOException {
+        this.sync = sync;
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        size = HEADER;
+        write();
+        if (sync == Sync.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "SheetJournal sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Appends the record of set(x, y, data), it is only durable once committed.
+     * @param data the data of the cell, null or empty to clear it.
+     */
+    public synchronized void append(int x, int y, String data) throws IOException {
+        byte[] bytes = data == null ? new byte[0] : data.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + bytes.length;
+        if (buffer.remaining() < RECORD_HEADER + length) {
+            write();
+            if (buffer.capacity() < RECORD_HEADER + length) {
+                buffer = ByteBuffer.allocate(RECORD_HEADER + length);
+            }
+        }
+        int start = buffer.position();
+        buffer.putInt(length);
+        buffer.putInt(0);  // the CRC, set once the payload is in place
+        buffer.putInt(x);
+        buffer.putInt(y);
+        buffer.put(bytes);
+        crc.reset();
+        crc.update(buffer.array(), start + RECORD_HEADER, length);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        size += RECORD_HEADER + length;
+    }
+
+    /**
+     * Commits the appended records: with the COMMIT policy, they are written as a single write and forced to the disk
+     * before it returns, with NONE they are only written, and with INTERVAL they are left to the next interval.
+     */
+    public synchronized void commit() throws IOException {
+        if (sync != Sync.INTERVAL) {
+            write();
+        }
+        if (sync == Sync.COMMIT) {
+            force();
+        }
+    }
+
+    /**
+     * @return the size of the journal in bytes, including the records not committed yet.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+            unforced = true;
+        }
+        buffer.clear();
+    }
+
+    private synchronized void force() throws IOException {
+        if (unforced) {
+            channel.force(false);
+            unforced = false;
+        }
+    }
+
+    private synchronized void flushQuietly() {
+        try {
+            write();
+            force();
+        } catch (IOException e) {
+            // The channel was closed (or failed), the next commit or close reports it
+        }
+    }
+
+    /**
+     * Commits and forces the appended records, and closes the journal.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        try {
+            write();
+            force();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the records of a journal, in order. The journal ends at the end of the file or at the first record
+     * that is cut or does not match its CRC (what a crash in the middle of a write leaves),
+     * the file is then truncated after the last valid record so new records can follow it.
+     * @param consumer called with every record (the data is "" for a cleared cell).
+     * @return the number of records read.
+     * @throws IOException if the file can not be read, or is not a journal of the current version.
+     */
+    public static long replay(String fileName, SheetReader.CellConsumer consumer) throws IOException {
+        Path path = Paths.get(fileName);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER) {
+                channel.truncate(0);  // the header itself was cut: a journal without records
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            channel.read(buffer);
+            buffer.flip();
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(fileName + " is not a sheet journal");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported journal version " + version + " (expected " + VERSION + ")");
+            }
+            CRC32 crc = new CRC32();
+            long valid = HEADER;  // the end of the last valid record
+            long count = 0;
+            while (true) {
+                if (buffer.remaining() < RECORD_HEADER) {
+                    buffer = refill(channel, buffer, RECORD_HEADER);
+                }
+                if (buffer.remaining() < RECORD_HEADER) {
+                    break;
+                }
+                int length = buffer.getInt(buffer.position());
+                if (length < 8 || length > fileSize - valid - RECORD_HEADER) {
+                    break;
+                }
+                if (buffer.remaining() < RECORD_HEADER + length) {
+                    buffer = refill(channel, buffer, RECORD_HEADER + length);
+                    if (buffer.remaining() < RECORD_HEADER + length) {
+                        break;
+                    }
+                }
+                int at = buffer.position();
+                crc.reset();
+                crc.update(buffer.array(), at + RECORD_HEADER, length);
+                if (buffer.getInt(at + 4) != (int) crc.getValue()) {
+                    break;
+                }
+                int x = buffer.getInt(at + 8), y = buffer.getInt(at + 12);
+                String data = new String(buffer.array(), at + RECORD_HEADER + 8, length - 8, StandardCharsets.UTF_8);
+                buffer.position(at + RECORD_HEADER + length);
+                consumer.accept(x, y, data);
+                valid += RECORD_HEADER + length;
+                count++;
+            }
+            if (valid < fileSize) {
+                channel.truncate(valid);
+                channel.force(false);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the beginning of the buffer (of at least n bytes) and reads more after them.
+     * @return the buffer, in read mode.
+     */
+    private static ByteBuffer refill(FileChannel channel, ByteBuffer buffer, int n) throws IOException {
+        ByteBuffer ans = buffer.capacity() >= n ? buffer : ByteBuffer.allocate(n);
+        if (ans == buffer) {
+            buffer.compact();
+        } else {
+            ans.put(buffer);
+        }
+        while (ans.hasRemaining() && channel.read(ans) > 0) {
+            // reading until the buffer is full or the end of the file
+        }
+        ans.flip();
+        return ans;
+    }
+}
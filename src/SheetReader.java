@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A streaming reader of the text format of Ex2Sheet.save (see Sheet.load):
+ * a header line followed by "x,y,data[,remarks]" lines.
+ * The file is read through a FileChannel into a single reused buffer and every line is scanned once:
+ * the coordinates are parsed straight from the bytes and only the data of a valid line becomes a String.
+ */
+public class SheetReader {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Receives the cells read from a file.
+     */
+    public interface CellConsumer {
+        void accept(int x, int y, String data);
+    }
+
+    /**
+     * Reads a saved SpreadSheet file, lines in the wrong format are ignored.
+     * @param fileName the file to read.
+     * @param consumer called with every cell (in file order).
+     * @throws IOException if the file can not be read.
+     */
+    public static void read(String fileName, CellConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            boolean header = true;
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(buffer) < 0;
+                byte[] bytes = buffer.array();
+                int end = buffer.position();
+                int start = 0;
+                for (int i = 0; i < end; i++) {
+                    if (bytes[i] == '\n') {
+                        if (!header) {
+                            parseLine(bytes, start, i, consumer);
+                        }
+                        header = false;
+                        start = i + 1;
+                    }
+                }
+                if (eof) {
+                    if (start < end && !header) {
+                        parseLine(bytes, start, end, consumer);  // last line without a line break
+                    }
+                } else if (start == 0 && end == bytes.length) {
+                    // A line longer than the buffer
+                    ByteBuffer larger = ByteBuffer.allocate(bytes.length * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                } else {
+                    // Keeps the incomplete line at the beginning of the buffer
+                    buffer.flip();
+                    buffer.position(start);
+                    buffer.compact();
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a single "x,y,data[,remarks]" line of bytes[start, end),
+     * commas within quotes are part of the data. Quoted data (as written by SheetWriter.writeCell) is unquoted.
+     */
+    static void parseLine(byte[] bytes, int start, int end, CellConsumer consumer) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        int comma1 = indexOf(bytes, start, end, ',');
+        if (comma1 < 0) return;
+        int comma2 = indexOf(bytes, comma1 + 1, end, ',');
+        if (comma2 < 0) return;
+        long x = parseInt(bytes, start, comma1);
+        long y = parseInt(bytes, comma1 + 1, comma2);
+        if (x == Long.MIN_VALUE || y == Long.MIN_VALUE) return;
+
+        int dataStart = comma2 + 1;
+        int dataEnd = dataStart;
+        boolean quoted = false;
+        while (dataEnd < end && (quoted || bytes[dataEnd] != ',')) {
+            if (bytes[dataEnd] == '"') {
+                quoted = !quoted;
+            }
+            dataEnd++;
+        }
+        // Same as String.trim()
+        while (dataStart < dataEnd && (bytes[dataStart] & 0xFF) <= ' ') dataStart++;
+        while (dataEnd > dataStart && (bytes[dataEnd - 1] & 0xFF) <= ' ') dataEnd--;
+        if (dataEnd - dataStart >= 2 && bytes[dataStart] == '"' && bytes[dataEnd - 1] == '"') {
+            String inner = new String(bytes, dataStart + 1, dataEnd - dataStart - 2, StandardCharsets.UTF_8);
+            consumer.accept((int) x, (int) y, inner.replace("\"\"", "\""));
+            return;
+        }
+        consumer.accept((int) x, (int) y, new String(bytes, dataStart, dataEnd - dataStart, StandardCharsets.UTF_8));
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == c) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a (trimmed) decimal integer from bytes[start, end).
+     * @return the integer, or Long.MIN_VALUE if it is not a valid int.
+     */
+    private static long parseInt(byte[] bytes, int start, int end) {
+        while (start < end && (bytes[start] & 0xFF) <= ' ') start++;
+        while (end > start && (bytes[end - 1] & 0xFF) <= ' ') end--;
+        boolean negative = false;
+        if (start < end && (bytes[start] == '-' || bytes[start] == '+')) {
+            negative = bytes[start] == '-';
+            start++;
+        }
+        if (start == end) return Long.MIN_VALUE;
+        long ans = 0;
+        for (int i = start; i < end; i++) {
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9) return Long.MIN_VALUE;
+            ans = ans * 10 + d;
+            if (ans > Integer.MAX_VALUE + 1L) return Long.MIN_VALUE;
+        }
+        ans = negative ? -ans : ans;
+        return ans < Integer.MIN_VALUE || ans > Integer.MAX_VALUE ? Long.MIN_VALUE : ans;
+    }
+}
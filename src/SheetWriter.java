@@ -0,0 +1,129 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the text format of Ex2Sheet.save (see Sheet.save) through a FileChannel.
+ * The lines are encoded straight into a single reused direct buffer (the coordinates digit by digit),
+ * which is written to the file whenever it is full.
+ */
+public class SheetWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] digits = new byte[11];
+
+    /**
+     * Creates (or truncates) the given file.
+     * @throws IOException if the file can not be opened for writing.
+     */
+    public SheetWriter(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Writes a line as is (e.g., the header line).
+     */
+    public void writeLine(String line) throws IOException {
+        writeString(line);
+        writeByte('\n');
+    }
+
+    /**
+     * Writes a "x,y,data" line. Data with a comma or a quote (e.g., "=SUM(A0:A1,5)"), or with leading or trailing
+     * spaces, is written within quotes, a quote doubled (as in CSV), so SheetReader reads it back as is.
+     */
+    public void writeCell(int x, int y, String data) throws IOException {
+        writeInt(x);
+        writeByte(',');
+        writeInt(y);
+        writeByte(',');
+        if (needsQuotes(data)) {
+            writeByte('"');
+            writeString(data.replace("\"", "\"\""));
+            writeByte('"');
+        } else {
+            writeString(data);
+        }
+        writeByte('\n');
+    }
+
+    private static boolean needsQuotes(String data) {
+        if (data.isEmpty()) {
+            return false;
+        }
+        if (data.charAt(0) <= ' ' || data.charAt(data.length() - 1) <= ' ') {
+            return true;  // would be trimmed
+        }
+        return data.indexOf(',') >= 0 || data.indexOf('"') >= 0;
+    }
+
+    private void writeInt(int v) throws IOException {
+        if (v < 0) {
+            writeByte('-');
+        }
+        long n = Math.abs((long) v);
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n > 0);
+        ensure(digits.length - i);
+        buffer.put(digits, i, digits.length - i);
+    }
+
+    private void writeString(String s) throws IOException {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // Not plain ASCII, let the encoder handle the rest of the String
+                byte[] bytes = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                for (int j = 0; j < bytes.length; j += BUFFER_SIZE) {
+                    int n = Math.min(BUFFER_SIZE, bytes.length - j);
+                    ensure(n);
+                    buffer.put(bytes, j, n);
+                }
+                return;
+            }
+            writeByte(c);
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        ensure(1);
+        buffer.put((byte) b);
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the file.
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the binary snapshot format written by SnapshotWriter in a single sequential pass over the memory mapped file.
+ * The file is mapped in windows of up to WINDOW bytes (a mapping is limited to 2GB), a value crossing the end
+ * of a window is read from the next one.
+ */
+public class SnapshotReader implements Closeable {
+    private static final long WINDOW = 1 << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;  // the offset of window in the file
+
+    /**
+     * Opens a snapshot and checks its header.
+     * @throws IOException if the file can not be read, is not a snapshot or has another version of the format.
+     */
+    public SnapshotReader(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            size = channel.size();
+            map(0);
+            if (size < 8 || readInt() != SnapshotWriter.MAGIC) {
+                throw new IOException(fileName + " is not a sheet snapshot");
+            }
+            int version = readInt();
+            if (version != SnapshotWriter.VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " (expected " + SnapshotWriter.VERSION + ")");
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int readByte() throws IOException {
+        ensure(1);
+        return window.get();
+    }
+
+    public int readInt() throws IOException {
+        ensure(4);
+        return window.getInt();
+    }
+
+    public long readLong() throws IOException {
+        ensure(8);
+        return window.getLong();
+    }
+
+    public int readVarInt() throws IOException {
+        long v = readVarLong();
+        if (v != (int) v) {
+            throw new IOException("Corrupted snapshot: " + v + " is not an int");
+        }
+        return (int) v;
+    }
+
+    public long readVarLong() throws IOException {
+        long z = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            z |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (z >>> 1) ^ -(z & 1);
+            }
+        }
+        throw new IOException("Corrupted snapshot: a variable length value of more than 10 bytes");
+    }
+
+    public double readDouble() throws IOException {
+        ensure(8);
+        return window.getDouble();
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt();
+        if (length < 0) {
+            return null;
+        }
+        ensure(length);
+        byte[] bytes = new byte[length];
+        window.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int[] readInts() throws IOException {
+        int[] ans = new int[readLength(1)];
+        for (int i = 0; i < ans.length; i++) {
+            ans[i] = readVarInt();
+        }
+        return ans;
+    }
+
+    public double[] readDoubles() throws IOException {
+        double[] ans = new double[readLength(8)];
+        for (int i = 0; i < ans.length; i++) {
+            ans[i] = readDouble();
+        }
+        return ans;
+    }
+
+    /**
+     * @return the length of an array of elements of (at least) the given size, checked against the rest of the file.
+     */
+    private int readLength(int elementSize) throws IOException {
+        int length = readVarInt();
+        if (length < 0 || (long) length * elementSize > size - windowStart - window.position()) {
+            throw new IOException("Corrupted snapshot: an array of " + length + " elements");
+        }
+        return length;
+    }
+
+    private void ensure(int n) throws IOException {
+        if (window.remaining() < n) {
+            long at = windowStart + window.position();
+            if (size - at < n) {
+                throw new EOFException("Truncated snapshot");
+            }
+            map(at);
+        }
+    }
+
+    private void map(long at) throws IOException {
+        windowStart = at;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(WINDOW, size - at));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
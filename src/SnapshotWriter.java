@@ -0,0 +1,127 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the binary snapshot format of Ex2Sheet.saveSnapshot through a FileChannel, as SheetWriter does
+ * for the text format: the values are encoded into a single reused direct buffer, written whenever it is full.
+ *
+ * A snapshot starts with MAGIC and VERSION (checked by SnapshotReader), the fixed size values are big endian.
+ * The variable length values (writeVarInt, writeVarLong) are zigzag encoded 7 bits per byte (the high bit marks
+ * a following byte), so the small ints most of a sheet is made of (lengths, opcodes, coordinates) take a single byte.
+ * A String is its UTF-8 length (-1 for null) followed by its bytes, an array is its length followed by its elements,
+ * the lengths and the elements of an int array are variable length values.
+ */
+public class SnapshotWriter implements Closeable {
+    /** The first int of a snapshot ("EX2S"). */
+    public static final int MAGIC = 0x45583253;
+    /** The version of the format, incremented by every incompatible change of it. */
+    public static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Creates (or truncates) the given file and writes the header of the format.
+     * @throws IOException if the file can not be opened for writing.
+     */
+    public SnapshotWriter(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        writeInt(MAGIC);
+        writeInt(VERSION);
+    }
+
+    public void writeByte(int v) throws IOException {
+        ensure(1);
+        buffer.put((byte) v);
+    }
+
+    public void writeInt(int v) throws IOException {
+        ensure(4);
+        buffer.putInt(v);
+    }
+
+    public void writeLong(long v) throws IOException {
+        ensure(8);
+        buffer.putLong(v);
+    }
+
+    public void writeVarInt(int v) throws IOException {
+        writeVarLong(v);
+    }
+
+    public void writeVarLong(long v) throws IOException {
+        ensure(10);
+        long z = (v << 1) ^ (v >> 63);
+        while ((z & ~0x7FL) != 0) {
+            buffer.put((byte) (z | 0x80));
+            z >>>= 7;
+        }
+        buffer.put((byte) z);
+    }
+
+    public void writeDouble(double v) throws IOException {
+        ensure(8);
+        buffer.putDouble(v);
+    }
+
+    public void writeString(String s) throws IOException {
+        if (s == null) {
+            writeVarInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        for (int j = 0; j < bytes.length; j += BUFFER_SIZE) {
+            int n = Math.min(BUFFER_SIZE, bytes.length - j);
+            ensure(n);
+            buffer.put(bytes, j, n);
+        }
+    }
+
+    public void writeInts(int[] a) throws IOException {
+        writeVarInt(a.length);
+        for (int v : a) {
+            writeVarInt(v);
+        }
+    }
+
+    public void writeDoubles(double[] a) throws IOException {
+        writeVarInt(a.length);
+        for (double v : a) {
+            writeDouble(v);
+        }
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the file.
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
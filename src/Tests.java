@@ -2,6 +2,8 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import java.io.File;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 import static org.junit.jupiter.api.Assertions .*;
 
 class Tests {
@@ -27,6 +29,38 @@ class Tests {
         assertEquals(13.0, SCell.computeForm("=5+2*4"));
     }
 
+    @Test
+    public void testCompiledFormula() {
+        assertEquals(-10.0, SCell.computeForm("=-(2+3)*2"));
+        assertEquals(3.0, SCell.computeForm("=10-4-3"));
+        assertEquals(1.0, SCell.computeForm("=8/4/2"));
+        assertEquals(-1.0, SCell.computeForm("=1/0"));
+
+        assertNull(Formula.compile("=1++2"));
+        assertNull(Formula.compile("=(1+2"));
+        assertNull(Formula.compile("=1 + 2"));
+        assertEquals(2, Formula.compile("=a1*(B2+3)").getReferenceCount());
+        // Every referenced cell is in the reference table once
+        Formula f = Formula.compile("=A1*B2+A1/C3-B2");
+        assertArrayEquals(new int[]{0, 1, 1, 2, 2, 3}, f.getReferences());
+    }
+
+    @Test
+    public void testNonAsciiFormula() {
+        // Digits and letters of other scripts are not part of the formula language
+        assertNull(Formula.compile("=١"));
+        assertNull(Formula.compile("=1+٢"));
+        assertNull(Formula.compile("=Ä1"));
+        assertNull(Formula.compile("=SUM(A1:Aé)"));
+        Sheet[] sheets = {new Ex2Sheet(), new ConcurrentSheet(), new OffHeapSheet()};
+        for (Sheet s : sheets) {
+            s.set(0, 0, "=١");
+            s.set(0, 1, "=A0+1");
+            assertEquals(Ex2Utils.ERR_FORM, s.value(0, 0));
+            assertEquals(Ex2Utils.ERR_FORM, s.value(0, 1));
+        }
+    }
+
     @Test
     public void testInvalidFormulaStartsWithOperator() {
 
@@ -93,6 +127,20 @@ class Tests {
         assertTrue(cell3.isValid());
         assertEquals(25, cell3.getX());
         assertEquals(99, cell3.getY());
+
+        // Multi letter columns and unbounded rows
+        CellEntry cell4 = new CellEntry("AA1");
+        assertTrue(cell4.isValid());
+        assertEquals(26, cell4.getX());
+        assertEquals(1, cell4.getY());
+
+        CellEntry cell5 = new CellEntry("XFD1048575");
+        assertTrue(cell5.isValid());
+        assertEquals(16383, cell5.getX());
+        assertEquals(1048575, cell5.getY());
+        assertEquals("XFD1048575", CellEntry.name(16383, 1048575));
+        assertEquals("AZ100", CellEntry.name(51, 100));
+        assertEquals("BA0", CellEntry.name(52, 0));
     }
 
     @Test
@@ -116,13 +164,13 @@ class Tests {
         assertEquals(Ex2Utils.ERR, cell3.getY());
 
         // Test invalid row
-        CellEntry cell4 = new CellEntry("A100");
+        CellEntry cell4 = new CellEntry("A-1");
         assertFalse(cell4.isValid());
         assertEquals(Ex2Utils.ERR, cell4.getX());
         assertEquals(Ex2Utils.ERR, cell4.getY());
 
         // Test invalid format
-        CellEntry cell5 = new CellEntry("AA1");
+        CellEntry cell5 = new CellEntry("A1B");
         assertFalse(cell5.isValid());
         assertEquals(Ex2Utils.ERR, cell5.getX());
         assertEquals(Ex2Utils.ERR, cell5.getY());
@@ -149,7 +197,7 @@ class Tests {
         assertEquals(99, last.getY());
 
         // Test just beyond valid range
-        CellEntry tooHigh = new CellEntry("Z100");
+        CellEntry tooHigh = new CellEntry("Z2147483648");
         assertFalse(tooHigh.isValid());
         assertEquals(Ex2Utils.ERR, tooHigh.getX());
         assertEquals(Ex2Utils.ERR, tooHigh.getY());
@@ -202,6 +250,341 @@ class Tests {
         assertEquals(Ex2Utils.ERR_CYCLE, sheet.get(0, 1).toString());
     }
 
+    @Test
+    void testDependentsRecalculated() {
+        sheet.set(0, 0, "5");
+        sheet.set(0, 1, "=A0*2");
+        sheet.set(0, 2, "=A1+A0");
+        assertEquals("15.0", sheet.get(0, 2).toString());
+
+        sheet.set(0, 0, "1");
+        assertEquals("2.0", sheet.get(0, 1).toString());
+        assertEquals("3.0", sheet.get(0, 2).toString());
+
+        // Creating and then breaking a cycle
+        sheet.set(0, 0, "=A2");
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.get(0, 2).toString());
+        sheet.set(0, 0, "4");
+        assertEquals("12.0", sheet.get(0, 2).toString());
+    }
+
+    @Test
+    void testCachedValueUntilDirty() {
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "=A0*3");
+        SCell form = (SCell) sheet.get(0, 1);
+        assertFalse(form.isDirty());
+        assertEquals("6.0", form.toString());
+
+        // Changing a precedent behind the sheet's back keeps the cached value
+        sheet.get(0, 0).setData("4");
+        assertEquals("6.0", form.toString());
+
+        form.markDirty();
+        assertEquals("12.0", form.toString());
+        assertFalse(form.isDirty());
+    }
+
+    @Test
+    void testEvalNumber() {
+        Ex2Sheet ex2 = new Ex2Sheet(10, 10);
+        ex2.set(0, 0, "0.1");
+        for (int y = 1; y < 10; y++) {
+            ex2.set(0, y, "=A" + (y - 1) + "*3");
+        }
+        double expected = 0.1;
+        for (int y = 1; y < 10; y++) {
+            expected = expected * 3;
+        }
+        assertEquals(expected, ex2.evalNumber(0, 9));
+        assertEquals(0, ex2.getEvalError());
+        assertEquals(String.valueOf(expected), ex2.value(0, 9));
+
+        ex2.set(1, 0, "text");
+        ex2.set(1, 1, "=B0");
+        assertTrue(Double.isNaN(ex2.evalNumber(1, 0)));
+        assertEquals(Ex2Utils.ERR_FORM_FORMAT, ex2.getEvalError());
+        assertEquals(Ex2Utils.ERR_FORM, ex2.value(1, 1));
+    }
+
+    @Test
+    void testBatch() {
+        Ex2Sheet ex2 = new Ex2Sheet(10, 10);
+        ex2.set(1, 0, "=A1*2");
+        ex2.beginBatch();
+        ex2.set(0, 1, "=A0+1");  // set before its precedent
+        ex2.set(0, 0, "4");
+        ex2.commit();
+        assertEquals("5.0", ex2.value(0, 1));
+        assertEquals("10.0", ex2.value(1, 0));
+    }
+
+    @Test
+    void testSparseStorage() {
+        Sheet large = new Ex2Sheet(10000, 100000);
+        assertSame(EmptyCell.INSTANCE, large.get(9999, 99999));
+        assertSame(large.get(0, 0), large.get(5, 7));
+        large.set(9999, 99999, "3");
+        large.set(0, 0, "=A0+1");
+        assertEquals("3", large.value(9999, 99999));
+        large.set(9999, 99999, "");
+        assertSame(EmptyCell.INSTANCE, large.get(9999, 99999));
+    }
+
+    @Test
+    void testCellMap() {
+        CellMap<Cell> map = new CellMap<>();
+        java.util.Map<Long, Cell> expected = new java.util.HashMap<>();
+        java.util.Random rnd = new java.util.Random(1);
+        for (int i = 0; i < 20000; i++) {
+            long key = ((long) rnd.nextInt(50) << 32) | rnd.nextInt(100);
+            if (rnd.nextInt(3) == 0) {
+                assertSame(expected.remove(key), map.remove(key));
+            } else {
+                Cell c = new SCell("" + i);
+                expected.put(key, c);
+                map.put(key, c);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (java.util.Map.Entry<Long, Cell> e : expected.entrySet()) {
+            assertSame(e.getValue(), map.get(e.getKey()));
+        }
+    }
+
+    @Test
+    void testDepth() {
+        sheet.set(0, 0, "1");
+        sheet.set(0, 1, "=A0+1");
+        sheet.set(0, 2, "=A1*A0");
+        sheet.set(1, 0, "=A2+A1+A0");
+        sheet.set(1, 1, "=2*3");
+        sheet.set(2, 0, "=C1");
+        sheet.set(2, 1, "=C0");
+        sheet.set(2, 2, "=C1+A0");
+        int[][] d = sheet.depth();
+        assertEquals(0, d[0][0]);
+        assertEquals(1, d[0][1]);
+        assertEquals(2, d[0][2]);
+        assertEquals(3, d[1][0]);
+        assertEquals(0, d[1][1]);
+        assertEquals(Ex2Utils.ERR, d[2][0]);
+        assertEquals(Ex2Utils.ERR, d[2][1]);
+        assertEquals(Ex2Utils.ERR, d[2][2]);
+        assertEquals(3, sheet.get(1, 0).getOrder());
+        assertEquals(Ex2Utils.ERR, sheet.get(2, 2).getOrder());
+
+        // A chain over all the cells, each one refers to the previous cell
+        Sheet chain = new Ex2Sheet(26, 100);
+        chain.set(0, 0, "1");
+        for (int i = 1; i < 2600; i++) {
+            chain.set(i / 100, i % 100, "=" + (char) ('A' + (i - 1) / 100) + ((i - 1) % 100));
+        }
+        assertEquals(2599, chain.depth()[25][99]);
+    }
+
+    @Test
+    void testParallelRecalc() {
+        Ex2Sheet sequential = new Ex2Sheet(26, 100);
+        Ex2Sheet parallel = new Ex2Sheet(26, 100);
+        parallel.setParallelism(4);
+        assertEquals(4, parallel.getParallelism());
+        for (Ex2Sheet s : new Ex2Sheet[] {sequential, parallel}) {
+            s.beginBatch();
+            for (int y = 0; y < 100; y++) {
+                s.set(0, y, "" + y);
+                for (int x = 1; x < 26; x++) {
+                    // level 1 (wide): refers to column A, level 2: also refers to the cell of level 1 at its left
+                    String ref = "A" + ((y * 7 + x) % 100);
+                    s.set(x, y, x % 2 == 1 ? "=" + ref + "*" + x : "=" + ref + "+" + (char) ('A' + x - 1) + y);
+                }
+            }
+            s.commit();
+        }
+        for (int x = 0; x < 26; x++) {
+            for (int y = 0; y < 100; y++) {
+                assertEquals(sequential.value(x, y), parallel.value(x, y));
+            }
+        }
+        parallel.set(0, 0, "1000");
+        sequential.set(0, 0, "1000");
+        assertEquals(sequential.value(1, 0), parallel.value(1, 0));
+        parallel.setParallelism(1);
+    }
+
+    @Test
+    void testConcurrentSheet() throws Exception {
+        ConcurrentSheet shared = new ConcurrentSheet(26, 100);
+        shared.set(0, 0, "2");
+        shared.set(0, 1, "=A0*3");
+        shared.set(0, 2, "=A1+A0");
+        assertEquals("8.0", shared.value(0, 2));
+        shared.set(0, 0, "1");
+        assertEquals("4.0", shared.value(0, 2));
+
+        shared.set(1, 0, "=B1");
+        shared.set(1, 1, "=B0+1");
+        shared.set(1, 2, "=B1");
+        assertEquals(Ex2Utils.ERR_CYCLE, shared.value(1, 2));
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, shared.get(1, 0).getType());
+        assertEquals(Ex2Utils.ERR, shared.depth()[1][1]);
+        assertEquals(2, shared.get(0, 2).getOrder());
+
+        // Every writer owns a column, the readers check the sums of all the columns
+        Thread[] threads = new Thread[8];
+        java.util.concurrent.atomic.AtomicReference<Throwable> failure = new java.util.concurrent.atomic.AtomicReference<>();
+        for (int t = 0; t < threads.length; t++) {
+            int col = 2 + t;
+            boolean writer = t % 2 == 0;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        if (writer) {
+                            shared.set(col, i % 50, "" + i);
+                            shared.set(col, 99, "=" + (char) ('A' + col) + (i % 50) + "*2");
+                        } else {
+                            String v = shared.value(col - 1, 99);
+                            assertTrue(v.isEmpty() || v.endsWith(".0"), v);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(failure.get());
+        assertEquals("3998.0", shared.value(2, 99));
+    }
+
+    @Test
+    void testConcurrentSheetInvalidation() throws Exception {
+        ConcurrentSheet shared = new ConcurrentSheet(26, 100);
+        assertInvalidatesOnlyDependents(shared, shared::isCached);
+
+        // A steady writer of an unrelated cell keeps the chain cached, a writer of its head is always seen
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 5000; i++) {
+                shared.set(3, i % 100, String.valueOf(i));
+                shared.set(0, 0, String.valueOf(i % 7));
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            String v = shared.value(1, 49);
+            assertTrue(v.endsWith(".0"), v);
+        }
+        writer.join();
+        assertEquals(String.valueOf(4999 % 7 + 51.0), shared.value(1, 49));  // B20 adds 2
+    }
+
+    /**
+     * A chain B0..B49 over A0 and a range over A0:A9: setting a cell only invalidates the formulas depending on it.
+     */
+    private static void assertInvalidatesOnlyDependents(Sheet s, java.util.function.BiPredicate<Integer, Integer> isCached) {
+        s.set(0, 0, "1");
+        s.set(1, 0, "=A0+1");
+        for (int y = 1; y < 50; y++) {
+            s.set(1, y, "=B" + (y - 1) + "+1");
+        }
+        s.set(2, 0, "=SUM(A0:A9)");
+        assertEquals("51.0", s.value(1, 49));
+        assertEquals("1.0", s.value(2, 0));
+        assertTrue(isCached.test(1, 0));
+        assertTrue(isCached.test(1, 49));
+
+        s.set(3, 5, "7");
+        s.set(0, 50, "7");
+        assertTrue(isCached.test(1, 49));
+        assertTrue(isCached.test(2, 0));
+        s.set(0, 3, "2");  // in the range only
+        assertTrue(isCached.test(1, 49));
+        assertFalse(isCached.test(2, 0));
+        assertEquals("3.0", s.value(2, 0));
+        s.set(0, 0, "5");
+        assertFalse(isCached.test(1, 0));
+        assertFalse(isCached.test(1, 49));
+        assertFalse(isCached.test(2, 0));
+        assertEquals("55.0", s.value(1, 49));
+        assertEquals("7.0", s.value(2, 0));
+
+        // A new formula in the chain invalidates the rest of it, and so does a cycle
+        s.set(1, 20, "=B19+2");
+        assertTrue(isCached.test(1, 19));
+        assertFalse(isCached.test(1, 49));
+        assertEquals("56.0", s.value(1, 49));
+        s.set(1, 0, "=B49");
+        assertEquals(Ex2Utils.ERR_CYCLE, s.value(1, 20));
+        s.set(1, 0, "=A0+1");
+        assertEquals("56.0", s.value(1, 49));
+    }
+
+    @Test
+    void testConcurrentSheetChainsAndCycles() {
+        assertEvaluatesAsEx2Sheet(new ConcurrentSheet(26, 20000));
+    }
+
+    /**
+     * A chain of 20,000 formulas (deeper than the Java stack would allow a recursive evaluation),
+     * and a cycle only reachable through an untaken IF branch, which Ex2Sheet finds in the reference tables.
+     */
+    private static void assertEvaluatesAsEx2Sheet(Sheet s) {
+        Ex2Sheet expected = new Ex2Sheet(26, 20000);
+        for (Sheet t : new Sheet[]{s, expected}) {
+            t.set(0, 0, "1");
+            for (int y = 1; y < 20000; y++) {
+                t.set(0, y, "=A" + (y - 1) + "+1");
+            }
+            t.set(4, 2, "=E3");
+            t.set(4, 3, "=E2*2");
+            t.set(1, 0, "=IF(7<(4+3),E2,2)");
+            t.set(1, 1, "=B0+1");
+            t.set(1, 2, "=IF(A0>0,5,E2)");
+        }
+        expected.eval();
+        assertEquals("20000.0", s.value(0, 19999));
+        assertEquals(expected.value(0, 19999), s.value(0, 19999));
+        for (int y = 0; y < 3; y++) {
+            assertEquals(Ex2Utils.ERR_CYCLE, expected.value(1, y));
+            assertEquals(expected.value(1, y), s.value(1, y), "B" + y);
+        }
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, s.get(1, 0).getType());
+        // Breaking the cycle
+        s.set(4, 3, "3");
+        assertEquals("2.0", s.value(1, 0));
+        assertEquals("3.0", s.value(1, 1));
+        assertEquals("5.0", s.value(1, 2));
+    }
+
+    @Test
+    void testVersionedSheet() {
+        VersionedSheet versioned = new VersionedSheet(10, 200);
+        versioned.set(0, 0, "2");
+        versioned.set(0, 150, "=A0*10");
+        versioned.set(1, 0, "label");
+        VersionedSheet.Version before = versioned.snapshot();
+        assertEquals("20.0", before.value(0, 150));
+
+        versioned.beginBatch();
+        versioned.set(0, 0, "3");
+        versioned.set(1, 0, "");
+        assertSame(before, versioned.snapshot());  // nothing is published before commit
+        versioned.commit();
+
+        VersionedSheet.Version after = versioned.snapshot();
+        assertEquals(before.getNumber() + 1, after.getNumber());
+        assertEquals("30.0", after.value(0, 150));
+        assertEquals("", after.value(1, 0));
+        assertSame(EmptyCell.INSTANCE, after.get(1, 0));
+        // The old version is unchanged
+        assertEquals("20.0", before.value(0, 150));
+        assertEquals("label", before.value(1, 0));
+        assertEquals(1, after.depth()[0][150]);
+    }
+
     @Test
     void testComplexFormulas() {
         sheet.set(0, 0, "5");
@@ -245,11 +628,708 @@ class Tests {
         // Clean up
         new File(tempFile).delete();
     }
-}
 
+    @Test
+    void testSaveAndLoadCommas() throws IOException {
+        sheet.set(0, 0, "5");
+        sheet.set(0, 1, "=SUM(A0:A0,5)");
+        sheet.set(0, 2, "=MAX(A0,A1,2*3)");
+        sheet.set(1, 0, "a, \"quoted\" text");
+        sheet.set(1, 1, "\"");
+        String tempFile = "test_commas.csv";
+        sheet.save(tempFile);
+        Sheet newSheet = new Ex2Sheet(10, 10);
+        newSheet.load(tempFile);
+        assertEquals("=SUM(A0:A0,5)", newSheet.get(0, 1).getData());
+        assertEquals("10.0", newSheet.value(0, 1));
+        assertEquals("10.0", newSheet.value(0, 2));
+        assertEquals("a, \"quoted\" text", newSheet.get(1, 0).getData());
+        assertEquals("\"", newSheet.get(1, 1).getData());
+        new File(tempFile).delete();
+    }
+
+    @Test
+    void testSaveAndLoadConditions() throws IOException {
+        File dir = new File("test_conditions_journal");
+        deleteAll(dir);
+        JournaledSheet journaled = new JournaledSheet(dir.getPath(), 10, 10, SheetJournal.Sync.NONE, 0);
+        Sheet[] sheets = {new Ex2Sheet(10, 10), new VersionedSheet(10, 10), new ConcurrentSheet(10, 10),
+                new OffHeapSheet(10, 10), journaled};
+        String tempFile = "test_conditions.csv";
+        for (Sheet s : sheets) {
+            s.set(0, 0, "4");
+            s.set(0, 1, "2");
+            s.set(1, 0, "=IF(A0>0,A1,3)");
+            s.set(1, 1, "=IF(A0<=A1,1,SUM(A0:A1,MAX(A0,10)))");
+            s.save(tempFile);
+            Sheet loaded = new Ex2Sheet(10, 10);
+            loaded.load(tempFile);
+            assertEquals("=IF(A0>0,A1,3)", loaded.get(1, 0).getData(), s.getClass().getName());
+            assertEquals("2.0", loaded.value(1, 0), s.getClass().getName());
+            assertEquals("16.0", loaded.value(1, 1), s.getClass().getName());
+        }
+        journaled.close();
+        deleteAll(dir);
+        new File(tempFile).delete();
+    }
+
+    @Test
+    void testSaveOnlyOccupiedCells() throws IOException {
+        sheet.set(2, 3, "שלום");
+        sheet.set(4, 4, "removed");
+        sheet.set(4, 4, "");
+        sheet.set(9, 9, "=C3");
+        String tempFile = "test_save.csv";
+        sheet.save(tempFile);
+
+        java.util.List<String> lines = java.nio.file.Files.readAllLines(new File(tempFile).toPath());
+        assertEquals(3, lines.size());
+        assertEquals("2,3,שלום", lines.get(1));
+        assertEquals("9,9,=C3", lines.get(2));
+
+        Sheet newSheet = new Ex2Sheet(10, 10);
+        newSheet.load(tempFile);
+        assertEquals("שלום", newSheet.value(2, 3));
+        assertEquals("", newSheet.value(4, 4));
+        new File(tempFile).delete();
+    }
+
+    @Test
+    void testLoadFormat() throws IOException {
+        String tempFile = "test_load.csv";
+        try (java.io.Writer w = new java.io.FileWriter(tempFile)) {
+            w.write("header line, 1,1,ignored\r\n");
+            w.write("0,0,7\r\n");
+            w.write(" 0 , 1 , =A0*2 ,a remark\n");
+            w.write("1,0,\"a, b\",remark\n");
+            w.write("11=3, this line should be ignored\n");
+            w.write("x,2,not a coordinate\n");
+            w.write("50,50,outside\n");
+            w.write("1,2,3, this cell should be loaded");  // no line break at the end
+        }
+        sheet.load(tempFile);
+        assertEquals("7", sheet.value(0, 0));
+        assertEquals("14.0", sheet.value(0, 1));
+        assertEquals("a, b", sheet.value(1, 0));  // unquoted
+        assertEquals("", sheet.value(1, 1));
+        assertEquals("3", sheet.value(1, 2));
+        new File(tempFile).delete();
+    }
+
+    @Test
+    void testGenerator() throws IOException {
+        SheetGenerator generator = new SheetGenerator(7);
+        generator.setSize(2000, 26, 77);
+        generator.setFormulas(0.8);
+        generator.setChain(20);
+        generator.setCycles(0.05);
+        generator.setErrors(0.05);
+        generator.write("test_gen1.csv");
+        generator.write("test_gen2.csv");
+        java.nio.file.Path file = new File("test_gen1.csv").toPath();
+        assertArrayEquals(java.nio.file.Files.readAllBytes(file), java.nio.file.Files.readAllBytes(new File("test_gen2.csv").toPath()));
+        assertEquals(2001, java.nio.file.Files.readAllLines(file).size());
+
+        Ex2Sheet generated = new Ex2Sheet(generator.width(), generator.height());
+        generated.load("test_gen1.csv");
+        int cycles = 0, errors = 0, maxDepth = 0;
+        int[][] depth = generated.depth();
+        for (int x = 0; x < 26; x++) {
+            for (int y = 0; y < 77; y++) {
+                String v = generated.value(x, y);
+                if (v.equals(Ex2Utils.ERR_CYCLE)) cycles++;
+                if (v.equals(Ex2Utils.ERR_FORM)) errors++;
+                maxDepth = Math.max(maxDepth, depth[x][y]);
+            }
+        }
+        assertTrue(cycles > 0);
+        assertTrue(errors > 0);
+        assertTrue(maxDepth >= 20);
+
+        generator.setCycles(0);
+        generator.write("test_gen2.csv");
+        generated.load("test_gen2.csv");
+        for (int x = 0; x < 26; x++) {
+            for (int y = 0; y < 77; y++) {
+                assertFalse(generated.value(x, y).equals(Ex2Utils.ERR_CYCLE));
+            }
+        }
+        new File("test_gen1.csv").delete();
+        new File("test_gen2.csv").delete();
+    }
+
+    @Test
+    void testGrowableSheet() throws IOException {
+        sheet.set(0, 0, "=AA500*2");
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(0, 0));
+        sheet.set(26, 500, "21");
+        assertEquals(27, sheet.width());
+        assertEquals(501, sheet.height());
+        assertEquals("42.0", sheet.value(0, 0));
+        assertEquals(1, sheet.depth()[0][0]);
+        sheet.set(-1, 3, "ignored");
+        assertEquals(27, sheet.width());
+
+        String tempFile = "test_grow.csv";
+        sheet.save(tempFile);
+        Sheet loaded = new Ex2Sheet(1, 1);
+        loaded.load(tempFile);
+        assertEquals(501, loaded.height());
+        assertEquals("42.0", loaded.value(0, 0));
+        new File(tempFile).delete();
+
+        VersionedSheet versioned = new VersionedSheet(2, 2);
+        versioned.set(0, 0, "=B200+1");
+        versioned.set(1, 200, "1");
+        assertEquals(201, versioned.height());
+        assertEquals("2.0", versioned.value(0, 0));
+        assertEquals("1", versioned.value(1, 200));
+
+        ConcurrentSheet concurrent = new ConcurrentSheet(2, 2);
+        concurrent.set(0, 0, "=C300+1");
+        concurrent.set(2, 300, "1");
+        assertEquals(3, concurrent.width());
+        assertEquals("2.0", concurrent.value(0, 0));
+    }
+
+    @Test
+    void testGrowAtTheBoundary() {
+        int last = Integer.MAX_VALUE - 1;  // the last addressable row (see CellEntry.isAddressable)
+        Ex2Sheet indexed = new Ex2Sheet();
+        indexed.setRangeIndex(true);
+        Sheet[] sheets = {new Ex2Sheet(), indexed, new VersionedSheet(9, 17), new ConcurrentSheet(), new OffHeapSheet()};
+        for (Sheet s : sheets) {
+            // A sheet can not be Integer.MAX_VALUE + 1 wide or high, these are ignored
+            s.set(Integer.MAX_VALUE, 0, "7");
+            s.set(0, Integer.MAX_VALUE, "7");
+            s.set(Integer.MAX_VALUE, Integer.MAX_VALUE, "=1");
+            assertEquals(9, s.width());
+            assertEquals(17, s.height());
+
+            s.set(0, last, "7");
+            s.set(1, 0, "=A" + last + "*2");
+            s.set(2, 0, "=A" + Integer.MAX_VALUE + "*2");
+            assertEquals(Integer.MAX_VALUE, s.height());
+            assertEquals("7", s.value(0, last));
+            assertEquals("14.0", s.value(1, 0));
+            assertEquals(Ex2Utils.ERR_FORM, s.value(2, 0));
+        }
+        assertTrue(CellEntry.isAddressable(last, last));
+        assertFalse(CellEntry.isAddressable(Integer.MAX_VALUE, 0));
+        assertFalse(CellEntry.isAddressable(0, -1));
+    }
+
+    @Test
+    void testPackedEntries() {
+        String formula = "=A1+XFD20*B300";
+        assertEquals(CellEntry.key(0, 1), CellEntry.parse(formula, 1, 3));
+        assertEquals(CellEntry.key(16383, 20), CellEntry.parse(formula, 4, 9));
+        assertEquals(CellEntry.key(1, 300), CellEntry.parse(new StringBuilder(formula), 10, 14));
+        assertEquals(CellEntry.INVALID, CellEntry.parse(formula, 0, 3));
+        assertEquals(CellEntry.INVALID, CellEntry.parse(formula, 1, 4));
+        assertEquals(CellEntry.INVALID, CellEntry.parse("A", 0, 1));
+        assertEquals(CellEntry.INVALID, CellEntry.parse("A99999999999", 0, 12));
+
+        long key = CellEntry.key(3, 7);
+        assertEquals(3, CellEntry.keyX(key));
+        assertEquals(7, CellEntry.keyY(key));
+        Ex2Sheet ex2 = (Ex2Sheet) sheet;
+        ex2.set(3, 7, "=5");
+        assertSame(ex2.get(3, 7), ex2.get(key));
+        assertSame(ex2.get(3, 7), ex2.get("D7"));
+        assertSame(EmptyCell.INSTANCE, ex2.get(CellEntry.key(1, 1)));
+        assertNull(ex2.get(CellEntry.key(-1, 1)));
+        assertNull(ex2.get("D"));
+    }
+
+    @Test
+    void testFunctions() {
+        for (int y = 0; y < 5; y++) {
+            sheet.set(0, y, String.valueOf(y + 1));  // A0..A4 = 1..5
+        }
+        sheet.set(0, 5, "text");
+        sheet.set(1, 0, "=SUM(A0:A9)");
+        sheet.set(1, 1, "=avg(A0:A5)");
+        sheet.set(1, 2, "=MIN(A4:A0,10)");
+        sheet.set(1, 3, "=MAX(A0:A4,B0/3)");
+        sheet.set(1, 4, "=COUNT(A0:A9)+SUM(1,2*3,MAX(A0,A1))");
+        sheet.set(1, 5, "=AVG(C0:C9)");
+        sheet.set(1, 6, "=SUM(A0:A4");
+        sheet.set(1, 7, "=FOO(A0:A4)");
+        sheet.set(1, 8, "=A0:A4");
+        assertEquals("15.0", sheet.value(1, 0));
+        assertEquals("3.0", sheet.value(1, 1));
+        assertEquals("1.0", sheet.value(1, 2));
+        assertEquals("5.0", sheet.value(1, 3));
+        assertEquals("14.0", sheet.value(1, 4));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 5));  // the average of no cells
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 6));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 7));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 8));
+        assertTrue(SCell.isForm("=SUM(A1:A500,3)"));
+
+        // A range depends on all of its cells
+        sheet.set(0, 3, "100");
+        assertEquals("111.0", sheet.value(1, 0));
+        assertEquals(2, sheet.depth()[1][3]);
+        sheet.set(0, 9, "=B0");
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 0));
+        assertEquals(15.0, SCell.computeForm("=SUM(1,2,3,4,5)"));
+
+        ConcurrentSheet concurrent = new ConcurrentSheet(5, 5);
+        concurrent.set(0, 0, "2");
+        concurrent.set(0, 1, "x");
+        concurrent.set(0, 2, "=A0*2");
+        concurrent.set(1, 0, "=SUM(A0:A4)+COUNT(A0:A4)");
+        assertEquals("8.0", concurrent.value(1, 0));
+    }
+
+    @Test
+    void testRangeIndex() {
+        Ex2Sheet indexed = new Ex2Sheet(4, 4);
+        Ex2Sheet plain = new Ex2Sheet(4, 4);
+        indexed.setRangeIndex(true);
+        java.util.Random rnd = new java.util.Random(5);
+        String[] totals = {"=SUM(A0:C299)", "=AVG(B10:A200)", "=MIN(A0:C299)", "=MAX(C0:C299,A7)", "=COUNT(A0:B150)"};
+        for (int i = 0; i < totals.length; i++) {
+            indexed.set(3, i, totals[i]);
+            plain.set(3, i, totals[i]);
+        }
+        for (int i = 0; i < 2000; i++) {
+            int x = rnd.nextInt(3), y = rnd.nextInt(300);
+            int kind = rnd.nextInt(10);
+            String data = kind < 6 ? String.valueOf(rnd.nextInt(1000) - 500)
+                    : kind < 7 ? "text" : kind < 8 ? "" : kind < 9 ? "=" + CellEntry.name(x, (y + 1) % 300) + "*2" : "=1/0";
+            indexed.set(x, y, data);
+            plain.set(x, y, data);
+            for (int t = 0; t < totals.length; t++) {
+                assertEquals(plain.value(3, t), indexed.value(3, t));
+            }
+            if (i % 100 == 0) {
+                assertArrayEquals(plain.depth(), indexed.depth());  // the orders of the ranges come from the index
+            }
+        }
+        // Without errors the index answers alone, a change of a single cell updates the total
+        for (int y = 0; y < 300; y++) {
+            indexed.set(0, y, String.valueOf(y));
+            indexed.set(1, y, "");
+            indexed.set(2, y, "t");
+        }
+        assertEquals(String.valueOf(299 * 300 / 2.0), indexed.value(3, 0));
+        indexed.set(0, 150, "=A149+1000");
+        assertEquals(String.valueOf(299 * 300 / 2.0 + 999), indexed.value(3, 0));
+        assertEquals("151.0", indexed.value(3, 4));
+        assertEquals("7.0", indexed.value(3, 3));
+        assertEquals(2, indexed.get(3, 0).getOrder());
+        indexed.set(2, 20, "=D0+1");  // a cycle through a range
+        assertEquals(Ex2Utils.ERR, indexed.get(3, 0).getOrder());
+        indexed.set(2, 20, "t");
+        assertEquals(2, indexed.get(3, 0).getOrder());
+
+        assertTrue(indexed.hasRangeIndex());
+        indexed.setRangeIndex(false);
+        assertFalse(indexed.hasRangeIndex());
+        indexed.eval();
+        assertEquals(String.valueOf(299 * 300 / 2.0 + 999), indexed.value(3, 0));
+    }
+
+    @Test
+    void testLargeRanges() {
+        // A range is kept as its corners, not as its cells
+        Formula f = Formula.compile("=SUM(A0:A999999)+B1");
+        assertEquals(1, f.getReferenceCount());
+        assertArrayEquals(new int[]{0, 0, 0, 999999}, f.getRanges());
+        assertNotNull(Formula.compile("=SUM(A0:Z99999999)"));
+
+        Ex2Sheet ex2 = new Ex2Sheet(3, 10);
+        ex2.set(2, 0, "=SUM(A0:A999999)");
+        ex2.set(0, 5, "2");
+        assertEquals("2.0", ex2.value(2, 0));
+        Set<String> recalculated = new HashSet<>();
+        ex2.setRecalcListener((x, y) -> recalculated.add(CellEntry.name(x, y)));
+        ex2.set(0, 999999, "3");  // grows the sheet
+        assertEquals(Set.of("A999999", "C0"), recalculated);
+        assertEquals("5.0", ex2.value(2, 0));
+        recalculated.clear();
+        ex2.set(1, 5, "4");  // outside of the range
+        ex2.set(0, 1000000, "4");
+        assertEquals(Set.of("B5", "A1000000"), recalculated);
+        assertEquals("5.0", ex2.value(2, 0));
+
+        // Cycles are found through a range, and dropping a range drops its dependency
+        ex2.set(0, 500000, "=C0");
+        assertEquals(Ex2Utils.ERR_CYCLE, ex2.value(2, 0));
+        assertEquals(Ex2Utils.ERR, ex2.get(0, 500000).getOrder());
+        ex2.set(0, 500000, "1");
+        assertEquals("6.0", ex2.value(2, 0));
+        assertEquals(1, ex2.get(2, 0).getOrder());
+        ex2.set(2, 0, "=A5");
+        recalculated.clear();
+        ex2.set(0, 7, "1");
+        assertEquals(Set.of("A7"), recalculated);
+
+        // The other sheets only read the cells of a range inside the sheet
+        Sheet[] others = {new ConcurrentSheet(3, 10), new OffHeapSheet(3, 10)};
+        for (Sheet other : others) {
+            other.set(2, 0, "=SUM(A0:A999999)");
+            other.set(0, 5, "2");
+            other.set(0, 9, "=A5*2");
+            assertEquals("6.0", other.value(2, 0));
+            assertEquals(2, other.depth()[2][0]);
+            other.set(0, 3, "=C0");
+            assertEquals(Ex2Utils.ERR_CYCLE, other.value(2, 0));
+            assertEquals(Ex2Utils.ERR, other.get(2, 0).getOrder());
+        }
+    }
+
+    @Test
+    void testConditions() {
+        assertEquals(1.0, SCell.computeForm("=1<2"));
+        assertEquals(0.0, SCell.computeForm("=2*3<=5"));
+        assertEquals(1.0, SCell.computeForm("=(1+1)==2"));
+        assertEquals(7.0, SCell.computeForm("=IF(1!=1,5,7)"));
+        assertEquals(3.0, SCell.computeForm("=1+IF(2>=2,IF(0,9,2),9)"));
+        assertEquals(-1.0, SCell.computeForm("=1<2<3"));
+        assertEquals(-1.0, SCell.computeForm("=1=2"));
+        assertEquals(-1.0, SCell.computeForm("=IF(1,2)"));
+        assertTrue(SCell.isForm("=IF(A1>=0,A1,-A1)"));
 
+        // The untaken branch is not evaluated
+        sheet.set(0, 0, "0");
+        sheet.set(1, 0, "=IF(A0==0,0,1/A0)");
+        sheet.set(1, 1, "=IF(A0>0,C0,1)");
+        sheet.set(2, 0, "=C0++");
+        assertEquals("0.0", sheet.value(1, 0));
+        assertEquals("1.0", sheet.value(1, 1));
+        sheet.set(0, 0, "4");
+        assertEquals("0.25", sheet.value(1, 0));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 1));
 
+        // A new value of a cell only read by an untaken branch does not recalculate the formula
+        Set<String> recalculated = new HashSet<>();
+        ((Ex2Sheet) sheet).setRecalcListener((x, y) -> recalculated.add(CellEntry.name(x, y)));
+        sheet.set(0, 0, "-1");
+        sheet.set(2, 0, "5");
+        assertEquals(Set.of("A0", "B0", "B1", "C0"), recalculated);
+        recalculated.clear();
+        sheet.set(2, 0, "6");
+        assertEquals(Set.of("C0"), recalculated);
+        assertEquals("1.0", sheet.value(1, 1));
+        sheet.set(0, 0, "1");
+        assertEquals("6.0", sheet.value(1, 1));
+        sheet.set(2, 0, "7");
+        assertEquals("7.0", sheet.value(1, 1));
 
+        // Cycles are still found through the untaken branches
+        sheet.set(2, 0, "=B1");
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 1));
+        sheet.set(0, 0, "0");
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 1));
+        sheet.eval();
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 1));
+    }
 
+    @Test
+    void testIncrementalCycles() {
+        sheet.set(1, 4, "=(IF(A0>0,1,2)+MAX(B1:D4))");  // a cycle through its range
+        sheet.set(2, 0, "=(B4*C4/E1+B5)");
+        sheet.set(0, 2, "=E4/C0");
+        sheet.set(5, 5, "=IF(1<2,5,C0)");  // only refers to the cycle through an untaken branch
+        String[] values = {sheet.value(1, 4), sheet.value(2, 0), sheet.value(0, 2), sheet.value(5, 5)};
+        int[] types = {sheet.get(1, 4).getType(), sheet.get(2, 0).getType(), sheet.get(0, 2).getType(), sheet.get(5, 5).getType()};
+        sheet.eval();
+        assertArrayEquals(new String[]{sheet.value(1, 4), sheet.value(2, 0), sheet.value(0, 2), sheet.value(5, 5)}, values);
+        assertArrayEquals(new int[]{sheet.get(1, 4).getType(), sheet.get(2, 0).getType(), sheet.get(0, 2).getType(),
+                sheet.get(5, 5).getType()}, types);
+        assertEquals(Ex2Utils.ERR_CYCLE, values[2]);
+        assertEquals(Ex2Utils.ERR_CYCLE, values[3]);
+        assertEquals(Ex2Utils.ERR, sheet.depth()[0][2]);
 
+        // Breaking the cycle frees its dependents
+        sheet.set(1, 4, "3");
+        assertEquals("5.0", sheet.value(5, 5));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(0, 2));  // E4 is empty
+        assertEquals(2, sheet.get(5, 5).getOrder());
+    }
 
+    @Test
+    void testNumberColumns() throws IOException {
+        NumberColumns numbers = new NumberColumns();
+        assertTrue(numbers.put(2, 5000, "-12"));
+        assertTrue(numbers.put(2, 3, "2.5"));
+        assertFalse(numbers.put(0, 0, "3.50"));  // not canonical, left to an SCell
+        assertFalse(numbers.put(0, 1, "1e3"));
+        assertFalse(numbers.put(0, 2, "NaN"));
+        assertEquals(-12.0, numbers.get(2, 5000));
+        assertEquals("-12", numbers.text(2, 5000));
+        assertEquals("2.5", numbers.text(2, 3));
+        assertTrue(Double.isNaN(numbers.get(2, 4)));
+        assertArrayEquals(new long[] {CellEntry.key(2, 3), CellEntry.key(2, 5000)}, numbers.keys());
+        numbers.remove(2, 3);
+        assertEquals(1, numbers.size());
+        assertNull(numbers.text(2, 3));
+
+        // The sheet keeps the text that was set, whether it is stored by column or not
+        sheet.set(0, 0, "7");
+        sheet.set(0, 1, "3.50");
+        sheet.set(0, 2, "=A0+A1+SUM(A0:A1)");
+        assertEquals(Ex2Utils.NUMBER, sheet.get(0, 0).getType());
+        assertEquals("7", sheet.get(0, 0).getData());
+        assertEquals("3.50", sheet.get(0, 1).getData());
+        assertEquals("21.0", sheet.value(0, 2));
+        File file = File.createTempFile("numbers", ".csv");
+        file.deleteOnExit();
+        sheet.save(file.getPath());
+        Ex2Sheet loaded = new Ex2Sheet(1, 1);
+        loaded.load(file.getPath());
+        assertEquals("7", loaded.get(0, 0).getData());
+        assertEquals("3.50", loaded.get(0, 1).getData());
+        assertEquals("21.0", loaded.value(0, 2));
+        loaded.set(0, 0, "x");
+        assertEquals(Ex2Utils.TEXT, loaded.get(0, 0).getType());
+        assertEquals(Ex2Utils.ERR_FORM, loaded.value(0, 2));
+    }
+
+    @Test
+    void testCellArena() {
+        CellArena arena = new CellArena(4);  // 16 records per segment, so it grows over several segments
+        for (int i = 0; i < 1000; i++) {
+            long r = arena.insert(CellEntry.key(i % 7, i));
+            arena.setType(r, Ex2Utils.TEXT);
+            arena.setText(r, "cell" + i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            arena.remove(CellEntry.key(i % 7, i));
+        }
+        assertEquals(500, arena.size());
+        assertEquals(-1, arena.find(CellEntry.key(0, 0)));
+        String big = "x".repeat(1000);
+        for (int n = 0; n < 3000; n++) {  // replaced texts are garbage, until the text heap is compacted
+            arena.setText(arena.find(CellEntry.key(1, 1)), big + n);
+        }
+        assertTrue(arena.offHeapBytes() < 8 << 20);
+        for (int i = 1; i < 1000; i += 2) {
+            long r = arena.find(CellEntry.key(i % 7, i));
+            assertEquals(i == 1 ? big + 2999 : "cell" + i, arena.text(r));
+            assertEquals(CellEntry.key(i % 7, i), arena.key(r));
+        }
+    }
+
+    @Test
+    void testOffHeapSheetInvalidation() {
+        OffHeapSheet offHeap = new OffHeapSheet(26, 100);
+        assertInvalidatesOnlyDependents(offHeap, offHeap::isCached);
+    }
+
+    @Test
+    void testEdgeArena() {
+        EdgeArena edges = new EdgeArena(4);  // 16 edges per segment, so it grows over several segments
+        for (int i = 0; i < 1000; i++) {
+            edges.add(i % 10, CellEntry.key(1, i));
+        }
+        edges.add(-5, 7);  // any from key, e.g. a node of RangeNodes
+        edges.add(-5, 7);
+        for (int i = 0; i < 1000; i += 2) {
+            edges.remove(i % 10, CellEntry.key(1, i));
+        }
+        edges.remove(-5, 7);
+        edges.remove(3, CellEntry.key(2, 3));  // not an edge
+        assertEquals(501, edges.size());
+        assertEquals(0, edges.get(0).length);
+        long[] threes = edges.get(3);
+        java.util.Arrays.sort(threes);
+        assertEquals(100, threes.length);
+        assertEquals(CellEntry.key(1, 3), threes[0]);
+        assertEquals(CellEntry.key(1, 993), threes[99]);
+        assertArrayEquals(new long[]{7}, edges.get(-5));
+        edges.clear();
+        assertEquals(0, edges.get(3).length);
+    }
+
+    @Test
+    void testOffHeapSheetChainsAndCycles() {
+        assertEvaluatesAsEx2Sheet(new OffHeapSheet(26, 20000));
+    }
+
+    @Test
+    void testOffHeapSheet() throws IOException {
+        Sheet offHeap = new OffHeapSheet(3, 3);
+        offHeap.set(0, 0, "2");
+        offHeap.set(0, 1, "=A0*3");
+        offHeap.set(5, 9, "=IF(A1>5,SUM(A0:A1),0)");
+        offHeap.set(1, 0, "=B1");
+        offHeap.set(1, 1, "=B0");
+        offHeap.set(2, 2, "hello");
+        assertEquals(6, offHeap.width());
+        assertEquals("6.0", offHeap.value(0, 1));
+        assertEquals("8.0", offHeap.value(5, 9));
+        assertEquals(Ex2Utils.ERR_CYCLE, offHeap.value(1, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, offHeap.get("B1").getType());
+        assertEquals("hello", offHeap.get(2, 2).getData());
+        assertEquals(2, offHeap.get(5, 9).getOrder());
+        offHeap.get(0, 0).setData("1");
+        assertEquals("0.0", offHeap.value(5, 9));
+        offHeap.set(2, 2, "");
+        assertSame(EmptyCell.INSTANCE, offHeap.get(2, 2));
+
+        // Loads and evaluates a generated sheet as an Ex2Sheet does (see testOffHeapSheetChainsAndCycles for the rest)
+        SheetGenerator generator = new SheetGenerator(11);
+        generator.setSize(3000, 30, 100);
+        generator.setFormulas(0.6);
+        generator.setChain(10);
+        generator.setCycles(0.05);
+        generator.setErrors(0.05);
+        generator.write("test_offheap.csv");
+        Ex2Sheet ex2 = new Ex2Sheet(1, 1);
+        ex2.load("test_offheap.csv");
+        offHeap.load("test_offheap.csv");
+        assertEquals(3000, ((OffHeapSheet) offHeap).size());
+        int[][] depth = ex2.depth(), offHeapDepth = offHeap.depth();
+        for (int x = 0; x < 30; x++) {
+            for (int y = 0; y < 100; y++) {
+                assertEquals(ex2.value(x, y), offHeap.value(x, y));
+                assertEquals(depth[x][y], offHeapDepth[x][y]);
+            }
+        }
+        offHeap.save("test_offheap2.csv");
+        ex2.save("test_offheap.csv");
+        assertArrayEquals(java.nio.file.Files.readAllBytes(new File("test_offheap.csv").toPath()),
+                java.nio.file.Files.readAllBytes(new File("test_offheap2.csv").toPath()));
+        new File("test_offheap.csv").delete();
+        new File("test_offheap2.csv").delete();
+    }
+
+    @Test
+    void testTextColumns() throws IOException {
+        TextColumns texts = new TextColumns();
+        assertTrue(texts.put(0, 0, "N/A"));
+        assertTrue(texts.put(3, 2000, new String("N/A")));
+        assertTrue(texts.put(1, 1, "units"));
+        assertFalse(texts.put(2, 2, "NaN"));  // a number
+        assertFalse(texts.put(2, 3, "=A1"));
+        assertSame(texts.get(0, 0), texts.get(3, 2000));
+        assertEquals(texts.id(0, 0), texts.id(3, 2000));
+        assertEquals(2, texts.distinct());
+        texts.remove(0, 0);
+        texts.put(3, 2000, "kg");
+        assertEquals(2, texts.distinct());  // "N/A" is dropped, no cell holds it
+        assertNull(texts.get(0, 0));
+        assertArrayEquals(new long[] {CellEntry.key(1, 1), CellEntry.key(3, 2000)}, texts.keys());
+        assertEquals(-1, texts.id(2, 2));
+
+        // A sheet shares the String of every repeated text
+        for (int y = 0; y < 50; y++) {
+            sheet.set(0, y, new String("N/A"));
+        }
+        sheet.set(1, 0, "=A0");
+        sheet.set(1, 1, "=COUNT(A0:A49)");
+        assertSame(sheet.get(0, 0).getData(), sheet.get(0, 49).getData());
+        assertSame(sheet.value(0, 7), sheet.value(0, 8));
+        assertEquals(Ex2Utils.TEXT, sheet.get(0, 3).getType());
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 0));
+        assertEquals("0.0", sheet.value(1, 1));
+        sheet.get(0, 0).setData("4");
+        sheet.eval();
+        assertEquals("4.0", sheet.value(1, 0));
+        assertEquals("1.0", sheet.value(1, 1));
+    }
+
+    @Test
+    void testSnapshot() throws IOException {
+        SheetGenerator generator = new SheetGenerator(5);
+        generator.setSize(3000, 30, 100);
+        generator.setFormulas(0.5);
+        generator.setChain(10);
+        generator.setCycles(0.05);
+        generator.setErrors(0.05);
+        generator.write("test_snapshot.csv");
+        Ex2Sheet saved = new Ex2Sheet(1, 1);
+        saved.load("test_snapshot.csv");
+        saved.set(30, 0, "3.50");
+        saved.set(30, 1, "=IF(A0>2,SUM(A0:C9),-1)");
+        saved.set(30, 2, "\u05e9\u05dc\u05d5\u05dd");
+        saved.set(31, 200, "=AD0*2");
+        saved.saveSnapshot("test_snapshot.bin");
+
+        Ex2Sheet loaded = new Ex2Sheet(1, 1);
+        loaded.loadSnapshot("test_snapshot.bin");
+        assertEquals(saved.width(), loaded.width());
+        assertEquals(saved.height(), loaded.height());
+        int[][] depth = saved.depth(), loadedDepth = loaded.depth();
+        for (int x = 0; x < saved.width(); x++) {
+            for (int y = 0; y < saved.height(); y++) {
+                assertEquals(saved.get(x, y).getData(), loaded.get(x, y).getData());
+                assertEquals(saved.get(x, y).getType(), loaded.get(x, y).getType());
+                assertEquals(saved.value(x, y), loaded.value(x, y));
+                assertEquals(depth[x][y], loadedDepth[x][y]);
+            }
+        }
+        // The dependencies are restored as well
+        loaded.set(0, 0, "100");
+        saved.set(0, 0, "100");
+        for (int x = 0; x < saved.width(); x++) {
+            for (int y = 0; y < saved.height(); y++) {
+                assertEquals(saved.value(x, y), loaded.value(x, y));
+            }
+        }
+        assertThrows(IOException.class, () -> loaded.loadSnapshot("test_snapshot.csv"));
+        new File("test_snapshot.csv").delete();
+        new File("test_snapshot.bin").delete();
+    }
+
+    @Test
+    void testJournaledSheet() throws Exception {
+        File dir = new File("test_journal");
+        deleteAll(dir);
+        JournaledSheet sheet = new JournaledSheet(dir.getPath(), 9, 17, SheetJournal.Sync.COMMIT, 0);
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "=A0*3");
+        sheet.beginBatch();
+        sheet.set(1, 0, "hello");
+        sheet.set(1, 1, "=A1+1");
+        sheet.commit();
+        // A crash: the journal is not closed, the committed edits were forced
+        JournaledSheet recovered = new JournaledSheet(dir.getPath(), 9, 17, SheetJournal.Sync.COMMIT, 0);
+        assertEquals("6.0", recovered.value(0, 1));
+        assertEquals("hello", recovered.value(1, 0));
+        assertEquals("7.0", recovered.value(1, 1));
+        sheet.close();
+
+        // A compaction replaces the journals with a snapshot, the edits made meanwhile go to the next journal
+        recovered.set(0, 0, "5");
+        recovered.compact().get();
+        recovered.set(0, 2, "=A1-1");
+        recovered.set(1, 0, "");
+        recovered.close();
+        String[] files = dir.list();
+        java.util.Arrays.sort(files);
+        assertArrayEquals(new String[]{"journal.2", "snapshot.1"}, files);
+
+        // A record cut by a crash ends the journal
+        try (java.io.FileOutputStream out = new java.io.FileOutputStream(new File(dir, "journal.2"), true)) {
+            out.write(new byte[]{0, 0, 0, 20, 1, 2, 3});
+        }
+        sheet = new JournaledSheet(dir.getPath(), 9, 17, SheetJournal.Sync.NONE, 0);
+        assertEquals("15.0", sheet.value(0, 1));
+        assertEquals("14.0", sheet.value(0, 2));
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.value(1, 0));
+        assertEquals(9, sheet.width());
+        sheet.set(2, 2, "=C2");
+        sheet.set(12, 20, "=A2*2");  // grows the sheet
+        sheet.close();
+        sheet = new JournaledSheet(dir.getPath(), 9, 17, SheetJournal.Sync.INTERVAL, 10);
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(2, 2));
+        assertEquals("28.0", sheet.value(12, 20));
+        assertEquals(13, sheet.width());
+        sheet.close();
+        deleteAll(dir);
+    }
+
+    private static void deleteAll(File dir) {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+}
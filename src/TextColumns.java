@@ -0,0 +1,217 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The text cells of a sheet, dictionary encoded: every distinct text is stored once in a sheet wide dictionary,
+ * and the cells hold the int id of their text, by columns (in chunks of CHUNK rows, as NumberColumns).
+ * A sheet repeating the same labels thousands of times keeps a single String of each, and 4 bytes per cell.
+ * A text is dropped from the dictionary (and its id reused) once no cell holds it.
+ *
+ * Only texts are stored here: the data of a cell that is not empty, not a formula (starting with "=")
+ * and not a number (as SCell.isNumber).
+ */
+public class TextColumns {
+    private static final int CHUNK_BITS = 10, CHUNK = 1 << CHUNK_BITS;  // rows per chunk
+
+    private int[][][] columns = new int[0][][];  // [x][y / CHUNK][y % CHUNK], the id of the text + 1 (0 for none)
+    private int[][] chunkSizes = new int[0][];   // [x][y / CHUNK], the number of texts in the chunk
+    private int size;
+
+    // The dictionary
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] texts = new String[16];  // by id, null for a free id
+    private int[] counts = new int[16];       // by id, the number of cells holding the text
+    private int[] freeIds = new int[16];
+    private int freeCount, nextId;
+
+    /**
+     * Stores the text of the x,y cell if s is a text, otherwise removes the x,y text.
+     * @return true iff s was stored (x and y must be addressable, see CellEntry.isAddressable).
+     */
+    public boolean put(int x, int y, String s) {
+        if (!isText(s)) {
+            remove(x, y);
+            return false;
+        }
+        putText(x, y, s);
+        return true;
+    }
+
+    /**
+     * Stores s as the text of the x,y cell, s must be a text (see isText).
+     */
+    void putText(int x, int y, String s) {
+        if (x >= columns.length) {
+            int n = (int) Math.min(Math.max(x + 1L, 2L * columns.length), Integer.MAX_VALUE);
+            columns = Arrays.copyOf(columns, n);
+            chunkSizes = Arrays.copyOf(chunkSizes, n);
+        }
+        int c = y >>> CHUNK_BITS;
+        if (columns[x] == null || c >= columns[x].length) {
+            columns[x] = Arrays.copyOf(columns[x] == null ? new int[0][] : columns[x], c + 1);
+            chunkSizes[x] = Arrays.copyOf(chunkSizes[x] == null ? new int[0] : chunkSizes[x], c + 1);
+        }
+        if (columns[x][c] == null) {
+            columns[x][c] = new int[CHUNK];
+        }
+        int i = y & (CHUNK - 1);
+        int old = columns[x][c][i];
+        columns[x][c][i] = intern(s) + 1;
+        if (old == 0) {
+            chunkSizes[x][c]++;
+            size++;
+        } else {
+            release(old - 1);
+        }
+    }
+
+    /**
+     * @return true iff s is the data of a text cell.
+     */
+    public static boolean isText(String s) {
+        if (s == null || s.isEmpty() || s.startsWith("=")) {
+            return false;
+        }
+        char c = s.charAt(0);
+        if (Character.isLetter(c) && c != 'N' && c != 'I') {
+            return true;  // can not be parsed as a number ("NaN" and "Infinity" can), without the cost of an exception
+        }
+        try {
+            Double.parseDouble(s);
+            return false;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return the id of the x,y text in the dictionary, -1 if there is none.
+     */
+    public int id(int x, int y) {
+        if (x < 0 || y < 0 || x >= columns.length || columns[x] == null) {
+            return -1;
+        }
+        int c = y >>> CHUNK_BITS;
+        if (c >= columns[x].length || columns[x][c] == null) {
+            return -1;
+        }
+        return columns[x][c][y & (CHUNK - 1)] - 1;
+    }
+
+    public boolean contains(int x, int y) {
+        return id(x, y) >= 0;
+    }
+
+    /**
+     * @return the x,y text (the instance shared by all the cells holding it), null if there is none.
+     */
+    public String get(int x, int y) {
+        int id = id(x, y);
+        return id < 0 ? null : texts[id];
+    }
+
+    /**
+     * @return the text of the given id, null if no cell holds it.
+     */
+    public String text(int id) {
+        return id >= 0 && id < nextId ? texts[id] : null;
+    }
+
+    /**
+     * @return the number of ids in use or free (all the ids are below it).
+     */
+    public int idLimit() {
+        return nextId;
+    }
+
+    /**
+     * @return the number of distinct texts.
+     */
+    public int distinct() {
+        return ids.size();
+    }
+
+    /**
+     * Removes the x,y text (if any), an empty chunk is released.
+     */
+    public void remove(int x, int y) {
+        int id = id(x, y);
+        if (id < 0) {
+            return;
+        }
+        int c = y >>> CHUNK_BITS;
+        columns[x][c][y & (CHUNK - 1)] = 0;
+        release(id);
+        size--;
+        if (--chunkSizes[x][c] == 0) {
+            columns[x][c] = null;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        columns = new int[0][][];
+        chunkSizes = new int[0][];
+        size = 0;
+        ids.clear();
+        texts = new String[16];
+        counts = new int[16];
+        freeCount = 0;
+        nextId = 0;
+    }
+
+    /**
+     * @return the packed x,y keys (see CellEntry.key) of all the stored texts, in x,y order.
+     */
+    public long[] keys() {
+        long[] ans = new long[size];
+        int n = 0;
+        for (int x = 0; x < columns.length; x++) {
+            for (int c = 0; columns[x] != null && c < columns[x].length; c++) {
+                int[] chunk = columns[x][c];
+                for (int i = 0; chunk != null && i < CHUNK; i++) {
+                    if (chunk[i] != 0) {
+                        ans[n++] = CellEntry.key(x, (c << CHUNK_BITS) + i);
+                    }
+                }
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * @return the id of s in the dictionary (added if it is not there), counting one more cell holding it.
+     */
+    private int intern(String s) {
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            if (id == texts.length) {
+                texts = Arrays.copyOf(texts, id * 2);
+                counts = Arrays.copyOf(counts, id * 2);
+            }
+            texts[id] = s;
+            ids.put(s, id);
+        }
+        counts[id]++;
+        return id;
+    }
+
+    /**
+     * Counts one less cell holding the text of id, a text no cell holds is dropped.
+     */
+    private void release(int id) {
+        if (--counts[id] == 0) {
+            ids.remove(texts[id]);
+            texts[id] = null;
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            }
+            freeIds[freeCount++] = id;
+        }
+    }
+}
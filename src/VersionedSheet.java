@@ -0,0 +1,375 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A SpreadSheet with copy-on-write versions, for a single editing thread and many reading threads.
+ * The edits are applied to a private Ex2Sheet, every committed edit (or batch of edits, see beginBatch/commit)
+ * publishes a new immutable Version through an atomic reference. A Version shares all the unchanged
+ * column chunks with the previous version, only the chunks of the recalculated cells are copied.
+ *
+ * All the read methods (get, value, depth, save...) read the current version without any locking,
+ * so readers never block the editor and never see a half applied edit. Use snapshot() to do several
+ * reads over the same version.
+ */
+public class VersionedSheet implements Sheet {
+    private static final int CHUNK = 64;  // rows per column chunk
+
+    private final Ex2Sheet editor;
+    private final AtomicReference<Version> current;
+    private final Set<Long> changed = new LinkedHashSet<>();  // the cells recalculated since the last published version
+    private boolean batch;
+
+    public VersionedSheet(int x, int y) {
+        editor = new Ex2Sheet(x, y);
+        editor.setRecalcListener((cx, cy) -> changed.add(CellEntry.key(cx, cy)));
+        current = new AtomicReference<>(new Version(0, x, y, new Snap[x][][]));
+    }
+
+    public VersionedSheet() {
+        this(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
+    }
+
+    /**
+     * @return the current (immutable) version of this sheet.
+     */
+    public Version snapshot() {
+        return current.get();
+    }
+
+    @Override
+    public synchronized void set(int x, int y, String c) {
+        editor.set(x, y, c);
+        if (!batch) {
+            publish();
+        }
+    }
+
+    /**
+     * Starts a batch of edits, none of them is visible to readers before commit().
+     */
+    public synchronized void beginBatch() {
+        batch = true;
+        editor.beginBatch();
+    }
+
+    /**
+     * Evaluates the edits of the batch and publishes them as a single new version.
+     */
+    public synchronized void commit() {
+        batch = false;
+        editor.commit();
+        publish();
+    }
+
+    @Override
+    public synchronized void eval() {
+        editor.eval();
+        publish();
+    }
+
+    @Override
+    public synchronized void load(String fileName) throws IOException {
+        try {
+            editor.load(fileName);
+        } finally {
+            // The editor was cleared, the loaded cells are the recalculated ones: the new version does not share anything
+            Version old = current.get();
+            Version next = new Version(old.number + 1, editor.width(), editor.height(), new Snap[editor.width()][][]);
+            for (long k : changed) {
+                int x = CellEntry.keyX(k), y = CellEntry.keyY(k);
+                if (!editor.get(x, y).getData().isEmpty()) {
+                    next.put(x, y, snap(x, y), null);
+                }
+            }
+            changed.clear();
+            current.set(next);
+        }
+    }
+
+    /**
+     * Copies the recalculated cells of the editor into a new version, sharing everything else.
+     */
+    private void publish() {
+        if (changed.isEmpty()) {
+            return;
+        }
+        Version old = current.get();
+        // The editor grows with the cells set outside of it, so does the new version
+        Version next = new Version(old.number + 1, editor.width(), editor.height(),
+                Arrays.copyOf(old.columns, editor.width()));
+        Set<Object> copied = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (long k : changed) {
+            int x = CellEntry.keyX(k), y = CellEntry.keyY(k);
+            Cell cell = editor.get(x, y);
+            next.put(x, y, cell == null || cell.getData().isEmpty() ? null : snap(x, y), copied);
+        }
+        changed.clear();
+        current.set(next);
+    }
+
+    private Snap snap(int x, int y) {
+        Cell cell = editor.get(x, y);
+        return new Snap(cell.getData(), cell.getType(), cell.getOrder(), editor.value(x, y), editor.evalNumber(x, y));
+    }
+
+    // The reads only go to the current version
+
+    @Override
+    public boolean isIn(int x, int y) {
+        return snapshot().isIn(x, y);
+    }
+
+    @Override
+    public int width() {
+        return snapshot().width();
+    }
+
+    @Override
+    public int height() {
+        return snapshot().height();
+    }
+
+    @Override
+    public Cell get(int x, int y) {
+        return snapshot().get(x, y);
+    }
+
+    @Override
+    public Cell get(String entry) {
+        return snapshot().get(entry);
+    }
+
+    @Override
+    public String value(int x, int y) {
+        return snapshot().value(x, y);
+    }
+
+    @Override
+    public String eval(int x, int y) {
+        return snapshot().eval(x, y);
+    }
+
+    @Override
+    public int[][] depth() {
+        return snapshot().depth();
+    }
+
+    @Override
+    public void save(String fileName) throws IOException {
+        snapshot().save(fileName);
+    }
+
+    /**
+     * An immutable version of a VersionedSheet. The cells are stored by columns,
+     * each column is split into chunks of CHUNK rows (null for an empty chunk or column).
+     * Only the read methods are supported, set, eval() and load throw an UnsupportedOperationException.
+     */
+    public static final class Version implements Sheet {
+        private final long number;
+        private final int width, height;
+        private final Snap[][][] columns;  // [x][y / CHUNK][y % CHUNK]
+
+        private Version(long number, int width, int height, Snap[][][] columns) {
+            this.number = number;
+            this.width = width;
+            this.height = height;
+            this.columns = columns;
+        }
+
+        /**
+         * @return the number of this version (0 for the first one, incremented by every published version).
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * Stores a cell while this version is built, the column and chunk arrays shared with the previous version
+         * are copied first (once, copied remembers the arrays owned by this version, null if all of them are).
+         * A column shorter than the height of this version is copied into a longer one.
+         */
+        private void put(int x, int y, Snap cell, Set<Object> copied) {
+            Snap[][] column = columns[x];
+            int chunks = (int) ((height + (long) CHUNK - 1) / CHUNK);  // height + CHUNK - 1 overflows an int
+            if (column == null) {
+                column = new Snap[chunks][];
+            } else if (column.length < chunks) {
+                column = Arrays.copyOf(column, chunks);
+            } else if (copied != null && !copied.contains(column)) {
+                column = column.clone();
+            }
+            if (copied != null) {
+                copied.add(column);
+            }
+            columns[x] = column;
+            Snap[] chunk = column[y / CHUNK];
+            if (chunk == null) {
+                chunk = new Snap[CHUNK];
+            } else if (copied != null && !copied.contains(chunk)) {
+                chunk = chunk.clone();
+            }
+            if (copied != null) {
+                copied.add(chunk);
+            }
+            column[y / CHUNK] = chunk;
+            chunk[y % CHUNK] = cell;
+        }
+
+        private Snap cell(int x, int y) {
+            Snap[][] column = columns[x];
+            Snap[] chunk = column == null || y / CHUNK >= column.length ? null : column[y / CHUNK];
+            return chunk == null ? null : chunk[y % CHUNK];
+        }
+
+        @Override
+        public boolean isIn(int x, int y) {
+            return x >= 0 && y >= 0 && x < width && y < height;
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        @Override
+        public Cell get(int x, int y) {
+            if (!isIn(x, y)) {
+                return null;
+            }
+            Snap cell = cell(x, y);
+            return cell == null ? EmptyCell.INSTANCE : cell;
+        }
+
+        @Override
+        public Cell get(String entry) {
+            long key = entry == null ? CellEntry.INVALID : CellEntry.parse(entry, 0, entry.length());
+            return key == CellEntry.INVALID ? null : get(CellEntry.keyX(key), CellEntry.keyY(key));
+        }
+
+        @Override
+        public String value(int x, int y) {
+            Snap cell = isIn(x, y) ? cell(x, y) : null;
+            return cell == null ? Ex2Utils.EMPTY_CELL : cell.value;
+        }
+
+        /**
+         * @return the numeric value of the x,y cell in this version, NaN if it has none.
+         */
+        public double evalNumber(int x, int y) {
+            Snap cell = isIn(x, y) ? cell(x, y) : null;
+            return cell == null ? Double.NaN : cell.number;
+        }
+
+        /**
+         * The values of a version are computed before it is published.
+         */
+        @Override
+        public String eval(int x, int y) {
+            return isIn(x, y) ? value(x, y) : null;
+        }
+
+        @Override
+        public void eval() {
+            // Nothing to do, see eval(x, y)
+        }
+
+        @Override
+        public int[][] depth() {
+            int[][] ans = new int[width][height];
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; columns[x] != null && y < height; y++) {
+                    Snap cell = cell(x, y);
+                    ans[x][y] = cell == null ? 0 : cell.order;
+                }
+            }
+            return ans;
+        }
+
+        @Override
+        public void set(int x, int y, String c) {
+            throw new UnsupportedOperationException("A version can not be changed, use VersionedSheet.set");
+        }
+
+        @Override
+        public void save(String fileName) throws IOException {
+            try (SheetWriter writer = new SheetWriter(fileName)) {
+                writer.writeLine("SpreadSheet (Ex2)- saved spreadsheet");
+                for (int x = 0; x < width; x++) {
+                    for (int y = 0; columns[x] != null && y < height; y++) {
+                        Snap cell = cell(x, y);
+                        if (cell != null) {
+                            writer.writeCell(x, y, cell.data);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void load(String fileName) {
+            throw new UnsupportedOperationException("A version can not be changed, use VersionedSheet.load");
+        }
+    }
+
+    /**
+     * An immutable cell of a version, with its computed value.
+     */
+    private static final class Snap implements Cell {
+        private final String data, value;
+        private final int type, order;
+        private final double number;
+
+        Snap(String data, int type, int order, String value, double number) {
+            this.data = data;
+            this.type = type;
+            this.order = order;
+            this.value = value;
+            this.number = number;
+        }
+
+        @Override
+        public String getData() {
+            return data;
+        }
+
+        @Override
+        public void setData(String s) {
+            throw new UnsupportedOperationException("A version can not be changed, use VersionedSheet.set");
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
+
+        @Override
+        public void setType(int t) {
+            throw new UnsupportedOperationException("A version can not be changed");
+        }
+
+        @Override
+        public int getOrder() {
+            return order;
+        }
+
+        @Override
+        public void setOrder(int t) {
+            throw new UnsupportedOperationException("A version can not be changed");
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+}